@@ -0,0 +1,155 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running aggregates over every balance in one User store, kept up to date
+ * as balances change so reports never copy or sort the store.
+ *
+ *  - total:   a LongAdder of all balances, O(1) to read
+ *  - buckets: a histogram of balances over LogLinearBuckets (exact below 16
+ *             cents). Percentiles read the counts in constant time and are
+ *             accurate to within 1/16 of the value.
+ *  - members: the accounts in each bucket, so richest(k) only reads the
+ *             top non-empty buckets, keeping the best k in a bounded heap
+ *             (and only k of an exact bucket)
+ *
+ * A balance change only touches the index when it crosses a bucket edge,
+ * which most small deposits and transfers do not. (A fully ordered skip
+ * list of balances cost a remove and an insert per change, and cut transfer
+ * throughput by about 10x.)
+ *
+ * User calls add/remove/move while it holds the account's stripe lock, so
+ * updates for one account never interleave. Readers take no locks. move
+ * adds the account to its new bucket before taking it out of the old one,
+ * so a reader racing it finds the account in one bucket or briefly in both
+ * (richest counts it once), never in neither; a bucket count may likewise
+ * be one high for a moment.
+ */
+final class BalanceIndex {
+    private static final int BUCKETS = LogLinearBuckets.COUNT;
+
+    private final LongAdder total = new LongAdder();
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicReferenceArray<Set<User>> members = new AtomicReferenceArray<>(BUCKETS);
+
+    /** Counts a newly registered account. */
+    void add(User u, long cents) {
+        total.add(cents);
+        enter(u, LogLinearBuckets.bucket(cents));
+    }
+
+    /** Forgets a removed account, given its final balance. */
+    void remove(User u, long cents) {
+        total.add(-cents);
+        leave(u, LogLinearBuckets.bucket(cents));
+    }
+
+    /** Records one account's balance going from before to after. */
+    void move(User u, long before, long after) {
+        total.add(after - before);
+        int from = LogLinearBuckets.bucket(before);
+        int to = LogLinearBuckets.bucket(after);
+        if (from != to) {
+            // enter first, so a concurrent richest() cannot miss the account in both buckets
+            enter(u, to);
+            leave(u, from);
+        }
+    }
+
+    long totalCents() {
+        return total.sum();
+    }
+
+    /**
+     * The k accounts with the largest balances, richest first. Ties are
+     * broken by id, except below 16 cents: there a bucket holds a single
+     * balance, so the call stops as soon as it has k accounts and ties come
+     * in the bucket's own (unspecified) order.
+     *
+     * Walks the buckets from the top, keeping the best k accounts seen in a
+     * heap, and stops after the bucket that brings it to k. It holds at most
+     * k accounts however many it reads. Buckets of 16 cents and up span a
+     * range, so each one visited is read in full, O(m log k) for m accounts
+     * read; but the common cluster, every new account at 0, is an exact
+     * bucket and costs at most k reads.
+     */
+    List<User> richest(int k) {
+        if (k <= 0) return new ArrayList<>();
+        // weakest of the best k at the head: lowest balance, then highest id
+        PriorityQueue<Ranked> best = new PriorityQueue<>(k, (a, b) -> {
+            int c = Long.compare(a.cents, b.cents);
+            return c != 0 ? c : Long.compare(b.user.id(), a.user.id());
+        });
+        // an account moving between buckets mid-scan can show up twice; count it once
+        Set<User> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int b = BUCKETS - 1; b >= 0 && best.size() < k; b--) {
+            Set<User> m = members.get(b);
+            if (m == null) continue;
+            boolean exact = LogLinearBuckets.lowerBound(b) == LogLinearBuckets.upperBound(b);
+            for (User u : m) {
+                if (exact && best.size() == k) break; // the rest tie with what we have
+                if (kept.contains(u)) continue;
+                long cents = u.getBalanceCents(); // read once, so the heap sees a stable order
+                if (best.size() == k) {
+                    Ranked weakest = best.peek();
+                    if (cents < weakest.cents || (cents == weakest.cents && u.id() > weakest.user.id())) continue;
+                    kept.remove(best.poll().user);
+                }
+                best.add(new Ranked(u, cents));
+                kept.add(u);
+            }
+        }
+        Ranked[] ranked = best.toArray(new Ranked[0]);
+        Arrays.sort(ranked, best.comparator().reversed());
+        List<User> out = new ArrayList<>(ranked.length);
+        for (Ranked r : ranked) out.add(r.user);
+        return out;
+    }
+
+    private static final class Ranked {
+        final User user;
+        final long cents;
+
+        Ranked(User user, long cents) {
+            this.user = user;
+            this.cents = cents;
+        }
+    }
+
+    /**
+     * The balance at or below which a fraction p of accounts fall, to within
+     * 1/16 of its value (the lower edge of its histogram bucket). -1 if empty.
+     */
+    long percentileCents(double p) {
+        if (p < 0 || p > 1) throw new IllegalArgumentException("p must be in [0, 1]: " + p);
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+        if (count == 0) return -1;
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return LogLinearBuckets.lowerBound(i);
+        }
+        return LogLinearBuckets.lowerBound(BUCKETS - 1); // writers moved accounts up while we counted
+    }
+
+    private void enter(User u, int bucket) {
+        Set<User> m = members.get(bucket);
+        if (m == null) {
+            members.compareAndSet(bucket, null, ConcurrentHashMap.newKeySet());
+            m = members.get(bucket);
+        }
+        m.add(u);
+        counts.incrementAndGet(bucket);
+    }
+
+    private void leave(User u, int bucket) {
+        counts.decrementAndGet(bucket);
+        members.get(bucket).remove(u);
+    }
+
+}
@@ -0,0 +1,140 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * An account's password verifier: raw salt and hash bytes plus the KDF
+ * cost they were made with. Immutable, so setPassword swaps one reference
+ * and authenticate never sees a new salt with an old hash.
+ *
+ * iterations == 0 is the original single salted SHA-256 pass; anything
+ * higher is PBKDF2WithHmacSHA256 with that many iterations. Both give
+ * 16-byte salts and 32-byte hashes, so the slot format stays fixed-width.
+ *
+ * Digests and key factories are kept per thread instead of being looked
+ * up on every call, and hashes are compared in constant time. Slow
+ * PBKDF2 checks and hashes can be pushed onto a small bounded pool sized to
+ * the CPU count (see verifyAsync, createAsync) so callers like the Swing EDT never block on
+ * them and a burst of logins cannot oversubscribe the machine.
+ */
+final class Credential {
+    static final int SALT_BYTES = 16;
+    static final int HASH_BYTES = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    });
+    private static final ThreadLocal<SecretKeyFactory> PBKDF2 = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("PBKDF2WithHmacSHA256 not available", e);
+        }
+    });
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[HASH_BYTES]);
+
+    private static final int POOL_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int POOL_QUEUE = 4096;
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            POOL_THREADS, POOL_THREADS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(POOL_QUEUE),
+            r -> {
+                Thread t = new Thread(r, "credential-verifier");
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+    static {
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    final int iterations;
+    private final byte[] salt;
+    private final byte[] hash;
+
+    Credential(int iterations, byte[] salt, byte[] hash) {
+        this.iterations = iterations;
+        this.salt = salt;
+        this.hash = hash;
+    }
+
+    /** Hashes a new password with a fresh salt at the given cost. */
+    static Credential create(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = new byte[HASH_BYTES];
+        derive(password, salt, iterations, hash);
+        return new Credential(iterations, salt, hash);
+    }
+
+    /**
+     * create() on the bounded verifier pool, so a PBKDF2 hash of a new
+     * password never runs on the caller's thread. Rejected like verifyAsync.
+     */
+    static CompletableFuture<Credential> createAsync(String password, int iterations) {
+        try {
+            return CompletableFuture.supplyAsync(() -> create(password, iterations), POOL);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /** Checks a password on the calling thread. */
+    boolean verify(String attempt) {
+        if (attempt == null) return false;
+        byte[] scratch = SCRATCH.get();
+        derive(attempt, salt, iterations, scratch);
+        return MessageDigest.isEqual(scratch, hash);
+    }
+
+    /**
+     * Checks a password on the bounded verifier pool. If the pool's queue is
+     * full the future fails with RejectedExecutionException right away.
+     */
+    CompletableFuture<Boolean> verifyAsync(String attempt) {
+        try {
+            return CompletableFuture.supplyAsync(() -> verify(attempt), POOL);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    byte[] salt() {
+        return salt;
+    }
+
+    byte[] hash() {
+        return hash;
+    }
+
+    private static void derive(String password, byte[] salt, int iterations, byte[] out) {
+        try {
+            if (iterations == 0) {
+                MessageDigest md = SHA256.get();
+                md.update(salt);
+                md.update(password.getBytes(StandardCharsets.UTF_8));
+                md.digest(out, 0, HASH_BYTES);
+            } else {
+                PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+                try {
+                    byte[] key = PBKDF2.get().generateSecret(spec).getEncoded();
+                    System.arraycopy(key, 0, out, 0, HASH_BYTES);
+                } finally {
+                    spec.clearPassword();
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Password hashing failed", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcomes of recent transfers by client request id, so that a retried
+ * User.transferOnce returns what the first attempt did instead of moving
+ * the money again.
+ *
+ * Lookups and claims are one ConcurrentHashMap operation. The first caller
+ * with an id claims it and runs the transfer; any caller with the same id
+ * that arrives meanwhile, however many, waits for that outcome rather than
+ * running it too. A failure (an exception) is remembered like a result.
+ *
+ * Ids are kept in arrival order and forgotten once they are older than the
+ * window or there are more than capacity of them, whichever comes first.
+ * An id whose transfer is still running is never forgotten, so a retry
+ * cannot overtake its original: eviction moves it to the back of the queue
+ * and carries on with the ids behind it, so one slow transfer does not hold
+ * up the rest. In-flight transfers can therefore push the count past
+ * capacity by at most the number of threads running them. Eviction runs on
+ * the claiming thread, one thread at a time; the others skip it instead of
+ * waiting.
+ */
+final class IdempotencyCache {
+    private final ConcurrentHashMap<String, Entry> entries;
+    private final Queue<Entry> arrivals = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong replays = new AtomicLong();
+    private final int capacity;
+    private final long windowNanos;
+
+    IdempotencyCache(int capacity, long windowNanos) {
+        if (capacity <= 0 || windowNanos <= 0) throw new IllegalArgumentException("capacity and window must be positive");
+        this.capacity = capacity;
+        this.windowNanos = windowNanos;
+        this.entries = new ConcurrentHashMap<>(Math.min(capacity, 1 << 16));
+    }
+
+    /** One transfer request and, once it has run, its outcome. */
+    static final class Entry {
+        final String id;
+        private final String from;
+        private final String to;
+        private final long cents;
+        private final long arrived = System.nanoTime();
+        private final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+
+        Entry(String id, String from, String to, long cents) {
+            this.id = Objects.requireNonNull(id, "request id");
+            this.from = from == null ? null : User.normalize(from);
+            this.to = to == null ? null : User.normalize(to);
+            this.cents = cents;
+        }
+
+        boolean sameRequest(Entry other) {
+            return Objects.equals(from, other.from) && Objects.equals(to, other.to) && cents == other.cents;
+        }
+
+        void succeeded(boolean ok) {
+            outcome.complete(ok);
+        }
+
+        void failed(Throwable t) {
+            outcome.completeExceptionally(t);
+        }
+
+        /** The first attempt's result, waiting for it if it is still running; rethrows what it threw. */
+        boolean await() {
+            try {
+                return outcome.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Registers e as the attempt to run for its id and returns null, or
+     * returns the entry already registered for that id. A finished entry
+     * older than the window counts as forgotten even if evict has not
+     * reached it yet, and e takes its place.
+     */
+    Entry claim(Entry e) {
+        Entry prior;
+        while ((prior = entries.putIfAbsent(e.id, e)) != null) {
+            if (!expired(prior, e.arrived)) {
+                replays.incrementAndGet();
+                return prior;
+            }
+            // prior stays queued; evict drops it there as usual, and its map removal is then a no-op
+            if (entries.replace(e.id, prior, e)) break;
+        }
+        arrivals.add(e);
+        size.incrementAndGet();
+        evict(e.arrived);
+        return null;
+    }
+
+    /** Ids currently remembered (plus any expired entries replaced by claim that evict has yet to drop). */
+    int size() {
+        return size.get();
+    }
+
+    /** Claims that found their id already taken, i.e. retries answered from the cache. */
+    long replays() {
+        return replays.get();
+    }
+
+    // what evict would drop for age: past the window and no longer running
+    private boolean expired(Entry e, long now) {
+        return now - e.arrived >= windowNanos && e.outcome.isDone();
+    }
+
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            // every entry is requeued at most once per pass, so a queue of nothing but
+            // in-flight transfers ends the pass instead of spinning
+            int requeues = size.get();
+            for (Entry head; (head = arrivals.peek()) != null; ) {
+                if (size.get() <= capacity && now - head.arrived < windowNanos) return;
+                arrivals.poll();
+                if (!head.outcome.isDone()) {
+                    arrivals.add(head);
+                    if (--requeues < 0) return;
+                    continue;
+                }
+                entries.remove(head.id, head);
+                size.decrementAndGet();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
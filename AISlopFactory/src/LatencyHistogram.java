@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds over LogLinearBuckets
+ * (every value lands in a bucket within 1/16 of it).
+ *
+ * record() is one atomic increment plus, rarely, a CAS on the maximum; it
+ * never allocates, so it is safe on hot paths and from any number of
+ * threads. Readers take a Snapshot, which copies the counts once.
+ */
+final class LatencyHistogram {
+    private final AtomicLongArray counts = new AtomicLongArray(LogLinearBuckets.COUNT);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        counts.incrementAndGet(LogLinearBuckets.bucket(nanos));
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+    }
+
+    /** Records the time since startNanos (a System.nanoTime() reading). */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    Snapshot snapshot() {
+        long[] c = new long[LogLinearBuckets.COUNT];
+        for (int i = 0; i < c.length; i++) c[i] = counts.get(i);
+        return new Snapshot(c, max.get());
+    }
+
+    /** A copy of the counts at one moment; percentiles report the bucket's upper edge. */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) n += c;
+            this.count = n;
+            this.max = max;
+        }
+
+        long count() {
+            return count;
+        }
+
+        long maxNanos() {
+            return max;
+        }
+
+        /** Latency at or below which a fraction p (0..1) of samples fall; 0 if empty. */
+        long percentileNanos(double p) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(LogLinearBuckets.upperBound(i), max);
+            }
+            return max;
+        }
+
+        /** Samples recorded since an earlier snapshot of the same histogram; the max stays all-time. */
+        Snapshot minus(Snapshot earlier) {
+            long[] c = new long[counts.length];
+            for (int i = 0; i < c.length; i++) c[i] = counts[i] - earlier.counts[i];
+            return new Snapshot(c, max);
+        }
+    }
+}
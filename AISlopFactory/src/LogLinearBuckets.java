@@ -0,0 +1,34 @@
+/**
+ * Log-linear bucketing of non-negative longs, shared by the balance and
+ * latency histograms: values below 16 get a bucket each, and every power
+ * of two above that is split into 16 equal sub-buckets, so a bucket's
+ * bounds are within 1/16 of any value in it. 960 buckets cover all longs.
+ */
+final class LogLinearBuckets {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    static final int COUNT = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private LogLinearBuckets() { }
+
+    static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) Math.max(0, value);
+        int exp = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return SUB_COUNT + (exp - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    /** Smallest value in the bucket. */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exp = (bucket - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+        long sub = (bucket - SUB_COUNT) % SUB_COUNT;
+        return (1L << exp) | (sub << (exp - SUB_BITS));
+    }
+
+    /** Largest value in the bucket. */
+    static long upperBound(int bucket) {
+        return bucket == COUNT - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+}
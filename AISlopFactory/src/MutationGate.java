@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets the User store stop all mutations for a moment, e.g. to cut a
+ * checkpoint that must line up exactly with a journal segment boundary.
+ *
+ * Mutators call enter()/exit() around each operation. Those only touch a
+ * per-thread stripe of in-flight counters, so they do not contend with each
+ * other. pause() blocks new mutators and waits for the in-flight ones to
+ * drain; resume() lets them continue. Calls must not nest on one thread.
+ */
+final class MutationGate {
+    private static final int STRIPES = 64;
+    private static final int PAD = 16; // one counter per 128-byte block, avoids false sharing
+
+    private final AtomicLongArray inFlight = new AtomicLongArray(STRIPES * PAD);
+    private final ReentrantLock pauser = new ReentrantLock();
+    private final Object resumed = new Object();
+    private volatile boolean paused;
+
+    void enter() {
+        int slot = slot();
+        for (;;) {
+            inFlight.incrementAndGet(slot);
+            if (!paused) return;
+            // back out so the pauser can drain, then wait for resume()
+            inFlight.decrementAndGet(slot);
+            synchronized (resumed) {
+                while (paused) {
+                    try {
+                        resumed.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    void exit() {
+        inFlight.decrementAndGet(slot());
+    }
+
+    /** Blocks new mutations and waits until none are in flight. */
+    void pause() {
+        pauser.lock();
+        paused = true;
+        for (int i = 0; i < STRIPES; i++) {
+            while (inFlight.get(i * PAD) != 0) {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    void resume() {
+        synchronized (resumed) {
+            paused = false;
+            resumed.notifyAll();
+        }
+        pauser.unlock();
+    }
+
+    private static int slot() {
+        return (int) (Thread.currentThread().threadId() & (STRIPES - 1)) * PAD;
+    }
+}
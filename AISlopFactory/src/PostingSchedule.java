@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+/**
+ * What a posting run (User.postToAll) does to one account, given its
+ * balance as of the run's cut: a positive result is credited as interest,
+ * a negative one charged as a fee, and 0 leaves the account alone.
+ *
+ * Called for every account from several threads at once, so it must be a
+ * pure function of the balance. Rates are in basis points (1/100 of a
+ * percent) and interest rounds down to the cent.
+ */
+@FunctionalInterface
+public interface PostingSchedule {
+    long postingCents(long balanceCents);
+
+    /** Interest of basisPoints / 10,000 of the balance. */
+    static PostingSchedule interest(int basisPoints) {
+        if (basisPoints < 0) throw new IllegalArgumentException("basisPoints < 0: " + basisPoints);
+        return balance -> basisPointsOf(balance, basisPoints);
+    }
+
+    /**
+     * Interest on the whole balance at the rate of the highest tier whose
+     * floor it reaches; balances below the first floor earn nothing.
+     * floorsCents must be ascending, with one rate per floor.
+     */
+    static PostingSchedule tieredInterest(long[] floorsCents, int[] basisPoints) {
+        if (floorsCents.length != basisPoints.length) throw new IllegalArgumentException("one rate per floor");
+        long[] floors = floorsCents.clone();
+        int[] rates = basisPoints.clone();
+        for (int i = 0; i < floors.length; i++) {
+            if (i > 0 && floors[i] <= floors[i - 1]) throw new IllegalArgumentException("floors must be ascending");
+            if (rates[i] < 0) throw new IllegalArgumentException("basisPoints < 0: " + rates[i]);
+        }
+        return balance -> {
+            int i = Arrays.binarySearch(floors, balance);
+            if (i < 0) i = -i - 2; // the floor below
+            return i < 0 ? 0 : basisPointsOf(balance, rates[i]);
+        };
+    }
+
+    /** A flat fee for accounts whose balance is below belowCents (e.g. a minimum-balance fee). */
+    static PostingSchedule fee(long feeCents, long belowCents) {
+        if (feeCents <= 0) throw new IllegalArgumentException("feeCents must be positive: " + feeCents);
+        return balance -> balance < belowCents ? -feeCents : 0;
+    }
+
+    /** Both postings, netted into one. */
+    default PostingSchedule plus(PostingSchedule other) {
+        return balance -> Math.addExact(postingCents(balance), other.postingCents(balance));
+    }
+
+    // balance * bps / 10,000 without overflowing for any balance
+    private static long basisPointsOf(long balance, int basisPoints) {
+        if (balance <= 0) return 0;
+        return Math.addExact(Math.multiplyExact(balance / 10_000, basisPoints), balance % 10_000 * basisPoints / 10_000);
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Totals of one User.postToAll run. Accounts are counted once each:
+ * credited, charged (fully or in part), or left alone because the schedule
+ * gave 0 for them, they were removed since the cut, or the credit would
+ * have overflowed their balance.
+ */
+public final class PostingSummary {
+    private long accounts;
+    private long credited;
+    private long creditedCents;
+    private long charged;
+    private long chargedCents;
+    private long uncollectedCents;
+    private long skipped;
+    private long elapsedNanos;
+
+    PostingSummary() { }
+
+    /** Accounts in the cut. */
+    public long getAccounts() { return accounts; }
+    public long getCredited() { return credited; }
+    public long getCreditedCents() { return creditedCents; }
+    public long getCharged() { return charged; }
+    public long getChargedCents() { return chargedCents; }
+    /** Fees not charged because the balance no longer covered them; the balance was taken to 0 instead. */
+    public long getUncollectedCents() { return uncollectedCents; }
+    /** Accounts with a posting that could not be applied (removed since the cut, or overflow). */
+    public long getSkipped() { return skipped; }
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    @Override
+    public String toString() {
+        return String.format("%,d accounts: %,d credited $%.2f, %,d charged $%.2f (uncollected $%.2f), %,d skipped, %d ms",
+                accounts, credited, creditedCents / 100.0, charged, chargedCents / 100.0, uncollectedCents / 100.0,
+                skipped, elapsedNanos / 1_000_000);
+    }
+
+    void account() {
+        accounts++;
+    }
+
+    void credit(long cents) {
+        credited++;
+        creditedCents += cents;
+    }
+
+    void charge(long cents, long wanted) {
+        if (cents > 0) charged++;
+        chargedCents += cents;
+        uncollectedCents += wanted - cents;
+    }
+
+    void skip() {
+        skipped++;
+    }
+
+    PostingSummary merge(PostingSummary o) {
+        accounts += o.accounts;
+        credited += o.credited;
+        creditedCents += o.creditedCents;
+        charged += o.charged;
+        chargedCents += o.chargedCents;
+        uncollectedCents += o.uncollectedCents;
+        skipped += o.skipped;
+        return this;
+    }
+
+    void finish(long nanos) {
+        elapsedNanos = nanos;
+    }
+}
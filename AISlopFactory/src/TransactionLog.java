@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One account's recent transaction history, kept as fixed-width primitive
+ * records in a ring buffer.
+ *
+ * Each record is three longs in one long[]: the time in epoch millis, the
+ * type in the top byte over the counterparty's account id (0 for deposits
+ * and withdrawals), and the amount in cents. No object is created per
+ * entry. The ring starts small, doubles as the account gets busier, and
+ * stops growing at the retention limit; after that each new entry
+ * overwrites the oldest.
+ *
+ * User appends while holding the account's stripe lock and reads by
+ * copying the ring out under the same lock (copy), so visitors run
+ * without holding anything. History is kept in memory only; it is not
+ * written to slots or the journal.
+ */
+public final class TransactionLog {
+    /** What a history entry records. */
+    public enum Type {
+        DEPOSIT, WITHDRAWAL, TRANSFER_IN, TRANSFER_OUT,
+        /** Credited and charged by User.postToAll. */
+        INTEREST, FEE;
+
+        private static final Type[] VALUES = values();
+
+        /** True for entries that added to the balance. */
+        public boolean isCredit() {
+            return this == DEPOSIT || this == TRANSFER_IN || this == INTEREST;
+        }
+    }
+
+    /** Receives history entries, oldest first. */
+    public interface Visitor {
+        void visit(long timeMillis, Type type, long counterpartyId, long cents) throws IOException;
+    }
+
+    static final int DEFAULT_RETENTION = 64;
+
+    private static final int FIELDS = 3;
+    private static final int INITIAL_ENTRIES = 4;
+    private static final int TYPE_SHIFT = 56;
+    private static final long ID_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private long[] ring;
+    private int next;  // entry index the next append writes
+    private int size;  // entries held, <= capacity
+    private long lastTime;
+
+    TransactionLog(int retention) {
+        ring = new long[Math.min(INITIAL_ENTRIES, retention) * FIELDS];
+    }
+
+    /** Adds an entry, keeping at most retention of them. */
+    void append(long timeMillis, Type type, long counterpartyId, long cents, int retention) {
+        if (size == capacity() && capacity() < retention) grow(retention);
+        // history is searched by time, so never let a clock step back reorder it
+        long t = Math.max(timeMillis, lastTime);
+        lastTime = t;
+        int at = next * FIELDS;
+        ring[at] = t;
+        ring[at + 1] = ((long) type.ordinal() << TYPE_SHIFT) | (counterpartyId & ID_MASK);
+        ring[at + 2] = cents;
+        next = (next + 1) % capacity();
+        if (size < capacity()) size++;
+    }
+
+    /** The entries, oldest first, as a flat array of records. */
+    long[] copy() {
+        long[] out = new long[size * FIELDS];
+        int oldest = (next - size + capacity()) % capacity();
+        int firstPart = Math.min(size, capacity() - oldest);
+        System.arraycopy(ring, oldest * FIELDS, out, 0, firstPart * FIELDS);
+        System.arraycopy(ring, 0, out, firstPart * FIELDS, (size - firstPart) * FIELDS);
+        return out;
+    }
+
+    // Reading a copy() result
+
+    /** Visits the entries with fromMillis <= time < toMillis. Returns how many. */
+    static int visitRange(long[] records, long fromMillis, long toMillis, Visitor v) throws IOException {
+        int n = records.length / FIELDS;
+        int i = firstAtOrAfter(records, n, fromMillis);
+        int visited = 0;
+        for (; i < n && records[i * FIELDS] < toMillis; i++, visited++) visit(records, i, v);
+        return visited;
+    }
+
+    /** Visits the newest count entries, oldest of them first. Returns how many. */
+    static int visitLast(long[] records, int count, Visitor v) throws IOException {
+        int n = records.length / FIELDS;
+        int from = Math.max(0, n - count);
+        for (int i = from; i < n; i++) visit(records, i, v);
+        return n - from;
+    }
+
+    private static void visit(long[] records, int i, Visitor v) throws IOException {
+        int at = i * FIELDS;
+        long packed = records[at + 1];
+        v.visit(records[at], Type.VALUES[(int) (packed >>> TYPE_SHIFT)], packed & ID_MASK, records[at + 2]);
+    }
+
+    private static int firstAtOrAfter(long[] records, int n, long time) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (records[mid * FIELDS] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int capacity() {
+        return ring.length / FIELDS;
+    }
+
+    // Only called when full, so the oldest entry is at next.
+    private void grow(int retention) {
+        long[] ordered = copy();
+        int entries = Math.min(retention, capacity() * 2);
+        ring = Arrays.copyOf(ordered, entries * FIELDS);
+        next = size;
+    }
+}
@@ -1,9 +1,27 @@
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Single-file user + user-store implementation.
@@ -11,185 +29,2034 @@ import java.util.Base64;
  * Usage:
  *  - User.addUser(username, password)
  *  - User.findByUsername(username)
- *  - User.getUsers()
- *  - User.saveToFile(File) / User.loadFromFile(File)
+ *  - User.view() for an immutable version of the account list, read
+ *    without locks or copying (see UserView); getUsers() for a mutable copy
+ *  - User.saveToFile(File) / User.loadFromFile(File); saves write a consistent
+ *    snapshot (see UserSnapshot) without stopping other threads, and
+ *    User.saveToFileAsync(File) writes it on a background thread. The
+ *    SlotProgress overloads report records/bytes and can be cancelled.
+ *    User.setSlotCompression(true) writes them as compressed, checksummed
+ *    blocks instead (see UserCompressedSlot)
+ *  - User.saveToDirectory(dir) / loadFromDirectory(dir) do the same with a
+ *    slot split into shards, saved and loaded in parallel, whose chunks are
+ *    shared with earlier saves and sibling slots (see UserShardedSlot)
+ *  - User.openJournal(dir, policy, intervalMillis) to log every mutation to a
+ *    write-ahead journal (see UserJournal); User.checkpoint() compacts it
+ *  - User.setPbkdf2Iterations(n) to hash new passwords with PBKDF2, and
+ *    authenticateAsync, addUserAsync and setPasswordAsync to check and hash
+ *    them off the caller's thread (see Credential)
+ *  - User.transferOnce(requestId, from, to, cents) for transfers that
+ *    callers may retry: a repeated request id gets the first outcome back
+ *    instead of moving the money again (see IdempotencyCache)
+ *  - User.setVelocityRules(rules) to refuse withdrawals and transfers from
+ *    accounts sending too often or too much within a sliding window (see
+ *    VelocityRule); velocityRejections() counts the refusals
+ *  - User.startLedger() to apply deposits, withdrawals and transfers on one
+ *    ledger thread fed by a ring buffer, in a single total order (see
+ *    UserLedger); depositCentsAsync etc. return futures instead of blocking
+ *  - User.postToAll(schedule) for month-end interest and fees on every
+ *    account, posted in parallel against one consistent cut of balances
+ *    (see PostingSchedule, PostingSummary)
+ *  - User.addStoreListener(l) to hear about added/removed users and balance changes
+ *  - User.totalBalanceCents() / richest(k) / balancePercentileCents(p) for
+ *    reports, from running aggregates (see BalanceIndex)
+ *  - u.history(from, to, visitor) / u.writeStatement(out, from, to) for recent
+ *    per-account transactions (see TransactionLog)
+ *  - User.registerMetricsMBean() / startMetricsDump(out, period) for latency
+ *    and outcome counts of each store operation (see UserMetrics)
  */
 public class User implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    // Java serialization is only used for legacy slots now. Its form is unchanged from
+    // when balance was a double and the credentials Base64 strings, so old
+    // saveslot*.dat files load as-is; readObject/writeObject convert the fields.
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("balance", double.class),
+            new ObjectStreamField("passwordHashBase64", String.class),
+            new ObjectStreamField("saltBase64", String.class),
+            new ObjectStreamField("username", String.class),
+            new ObjectStreamField("id", long.class), // absent in old slots, reads as 0
+            new ObjectStreamField("iterations", int.class), // absent in old slots: plain SHA-256
+    };
+
     // per-user data
     private String username;
-    private double balance;
-    private String passwordHashBase64;
-    private String saltBase64;
+    private transient volatile long balanceCents; // minor units; written under the account's stripe, or through BALANCE on replay
+    private transient volatile Credential credential; // serialized as Base64, see serialPersistentFields
+
+    // store bookkeeping: key is rebuilt on load, id is stable so the journal can refer to it
+    private transient String key;
+    private long id;
+    private transient volatile boolean registered; // in the live store; cleared on remove or load
+    private transient TransactionLog history; // recent entries, guarded by the stripe; null until the first
+    private transient VelocityWindow velocity; // debits per velocity rule, guarded by the stripe; null until the first
+
+    // snapshot bookkeeping: balance as of the running cut, and which cuts include this account
+    private transient volatile Frozen frozen;
+
+    // in-memory store; a load builds a new Accounts off to the side and swaps it in
+    private static volatile Accounts accounts = new Accounts(16);
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    // change listeners, told after each mutation has been applied (and made durable)
+    private static final CopyOnWriteArrayList<StoreListener> LISTENERS = new CopyOnWriteArrayList<>();
+    // latency and outcome of every public store operation; see UserMetrics
+    private static final UserMetrics METRICS = new UserMetrics();
+
+    // how many history entries each account keeps; 0 turns history off
+    private static volatile int historyRetention = TransactionLog.DEFAULT_RETENTION;
+
+    /** Longest username, in UTF-8 bytes; journal and slot records store the length in two bytes. */
+    public static final int MAX_USERNAME_BYTES = 0xFFFF;
+
+    // request ids of recent transferOnce calls, so retries get the first outcome
+    public static final int TRANSFER_ID_CAPACITY = 1 << 17;
+    public static final int TRANSFER_ID_WINDOW_MINUTES = 10;
+    private static final IdempotencyCache TRANSFER_IDS =
+            new IdempotencyCache(TRANSFER_ID_CAPACITY, TimeUnit.MINUTES.toNanos(TRANSFER_ID_WINDOW_MINUTES));
+
+    // limits on withdrawals and outgoing transfers; each account counts against them in its VelocityWindow
+    private static volatile VelocityRule[] velocityRules = new VelocityRule[0];
+    private static final LongAdder VELOCITY_REJECTIONS = new LongAdder();
+
+    // KDF cost for passwords set from now on; 0 is the original single salted SHA-256
+    private static volatile int kdfIterations;
+
+    // whether single-file slots (and journal checkpoints) are written compressed
+    private static volatile boolean slotCompression;
+
+    // account lock stripes, picked by id; always acquired in ascending stripe order
+    private static final int STRIPE_COUNT = 1024;
+    private static final ReentrantLock[] STRIPES = new ReentrantLock[STRIPE_COUNT];
+    static {
+        for (int i = 0; i < STRIPE_COUNT; i++) STRIPES[i] = new ReentrantLock();
+    }
+
+    // write-ahead journal, null until openJournal; the gate lets checkpoints stop mutations
+    private static final MutationGate GATE = new MutationGate();
+    private static volatile UserJournal journal;
+
+    // single-writer engine for balance changes, null unless startLedger was called
+    private static volatile UserLedger ledger;
+    private static File journalDir;
 
-    // in-memory store
-    private static final List<User> USERS = Collections.synchronizedList(new ArrayList<>());
+    // accounts each postToAll task posts under one gate entry
+    private static final int POSTING_CHUNK = 4096;
+
+    // copy-on-write snapshots: one at a time, cut under the gate, written while mutations go on
+    private static final Semaphore SNAPSHOT_PERMIT = new Semaphore(1);
+    private static volatile long epoch;
+    private static volatile UserSnapshot activeCut;
+    private static final ExecutorService SNAPSHOT_WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "user-snapshot-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final VarHandle BALANCE;
+    private static final VarHandle FROZEN;
+    private static final VarHandle VIEW;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BALANCE = lookup.findVarHandle(User.class, "balanceCents", long.class);
+            FROZEN = lookup.findVarHandle(User.class, "frozen", Frozen.class);
+            VIEW = lookup.findVarHandle(Accounts.class, "view", UserView.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** An account's balance as it was when the snapshot with this epoch was cut. */
+    private static final class Frozen {
+        final long epoch;
+        final long cents;
+
+        Frozen(long epoch, long cents) {
+            this.epoch = epoch;
+            this.cents = cents;
+        }
+    }
 
     public User(String username, String rawPassword) {
         this.username = username;
-        this.balance = 0.0;
-        byte[] salt = generateSalt();
-        this.saltBase64 = Base64.getEncoder().encodeToString(salt);
-        this.passwordHashBase64 = Base64.getEncoder().encodeToString(hash(rawPassword, salt));
+        this.key = normalize(username);
+        this.balanceCents = 0L;
+        this.credential = Credential.create(rawPassword, kdfIterations);
+    }
+
+    // Rebuilds a journaled account without re-hashing anything.
+    private User(long id, String username, Credential credential) {
+        this.id = id;
+        this.username = username;
+        this.key = normalize(username);
+        this.credential = credential;
     }
 
     // Instance API
     public String getUsername() { return username; }
-    public double getBalance() { return balance; }
+    public long getBalanceCents() { return balanceCents; }
+
+    /**
+     * Adds cents to the balance. Returns false for non-positive amounts, on
+     * overflow, or if the account has been removed from the store.
+     */
+    public boolean depositCents(long cents) {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            return ok = applyDeposit(cents);
+        } finally {
+            METRICS.record(UserMetrics.Op.DEPOSIT, start, ok);
+        }
+    }
 
-    public synchronized void deposit(double amt) {
-        if (amt > 0) balance += amt;
+    private boolean applyDeposit(long cents) {
+        if (cents <= 0) return false;
+        CompletableFuture<UserMetrics.Outcome> queued = submitToLedger(UserLedger.DEPOSIT, this, null, cents);
+        if (queued != null) return awaitLedger(queued) == UserMetrics.Outcome.SUCCESS;
+        long[] ticket = new long[1];
+        GATE.enter();
+        try {
+            if (postCredit(TransactionLog.Type.DEPOSIT, cents, ticket) != UserMetrics.Outcome.SUCCESS) return false;
+        } finally {
+            GATE.exit();
+        }
+        awaitDurable(ticket[0]);
+        fireBalanceChanged(this);
+        return true;
     }
 
-    public synchronized boolean withdraw(double amt) {
-        if (amt > 0 && amt <= balance) {
-            balance -= amt;
-            return true;
+    // Caller is inside the gate, and handles durability and listeners. Journaled as a deposit
+    // whatever the type, which only tells the history what the credit was.
+    private UserMetrics.Outcome postCredit(TransactionLog.Type type, long cents, long[] ticket) {
+        ReentrantLock lock = stripeOf(this);
+        lock.lock();
+        try {
+            if (!registered || !addCents(cents)) return UserMetrics.Outcome.FAILURE;
+            record(System.currentTimeMillis(), type, 0, cents);
+            UserJournal j = journal;
+            if (j != null) ticket[0] = j.logDeposit(id, cents);
+            return UserMetrics.Outcome.SUCCESS;
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
+    /** Removes cents from the balance if it covers them and the account is still in the store. */
+    public boolean withdrawCents(long cents) {
+        long start = System.nanoTime();
+        UserMetrics.Outcome outcome = UserMetrics.Outcome.FAILURE;
+        try {
+            outcome = applyWithdraw(cents);
+            return outcome == UserMetrics.Outcome.SUCCESS;
+        } finally {
+            METRICS.record(UserMetrics.Op.WITHDRAW, start, outcome);
+        }
+    }
+
+    private UserMetrics.Outcome applyWithdraw(long cents) {
+        if (cents <= 0) return UserMetrics.Outcome.FAILURE;
+        CompletableFuture<UserMetrics.Outcome> queued = submitToLedger(UserLedger.WITHDRAW, this, null, cents);
+        if (queued != null) return awaitLedger(queued);
+        long[] ticket = new long[1];
+        UserMetrics.Outcome outcome;
+        GATE.enter();
+        try {
+            outcome = postWithdraw(cents, ticket);
+        } finally {
+            GATE.exit();
+        }
+        if (outcome != UserMetrics.Outcome.SUCCESS) return outcome;
+        awaitDurable(ticket[0]);
+        fireBalanceChanged(this);
+        return outcome;
+    }
+
+    // Caller is inside the gate, and handles durability and listeners.
+    private UserMetrics.Outcome postWithdraw(long cents, long[] ticket) {
+        ReentrantLock lock = stripeOf(this);
+        lock.lock();
+        try {
+            if (!registered) return UserMetrics.Outcome.FAILURE;
+            long now = System.currentTimeMillis();
+            if (overVelocity(now, 1, cents)) return UserMetrics.Outcome.VELOCITY_LIMIT;
+            if (!takeCents(cents)) return UserMetrics.Outcome.INSUFFICIENT_FUNDS;
+            countDebits(now, 1, cents);
+            record(now, TransactionLog.Type.WITHDRAWAL, 0, cents);
+            UserJournal j = journal;
+            if (j != null) ticket[0] = j.logWithdraw(id, cents);
+            return UserMetrics.Outcome.SUCCESS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Charges up to cents, as much as the balance covers, and returns what
+     * was charged, or -1 if the account is no longer in the store. Journaled
+     * as a withdrawal. Same calling rules as postWithdraw.
+     */
+    private long postCharge(long cents, long[] ticket) {
+        ReentrantLock lock = stripeOf(this);
+        lock.lock();
+        try {
+            if (!registered) return -1;
+            // only we change the balance while we hold the stripe
+            long charged = Math.min(cents, balanceCents);
+            if (charged <= 0 || !takeCents(charged)) return 0;
+            record(System.currentTimeMillis(), TransactionLog.Type.FEE, 0, charged);
+            UserJournal j = journal;
+            if (j != null) ticket[0] = j.logWithdraw(id, charged);
+            return charged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Balance updates. Callers hold the account's stripe, which every writer of a live
+    // account's balance takes (for history, velocity and the index), so a plain read and
+    // volatile write is enough. They also handle the gate and the journal, and have checked
+    // the account is registered (so it belongs to the current store).
+    private boolean addCents(long cents) {
+        long cur = balanceCents;
+        if (cur > Long.MAX_VALUE - cents) return false;
+        preserve();
+        balanceCents = cur + cents;
+        accounts.balances.move(this, cur, cur + cents);
+        return true;
+    }
+
+    private boolean takeCents(long cents) {
+        long cur = balanceCents;
+        if (cents > cur) return false;
+        preserve();
+        balanceCents = cur - cents;
+        accounts.balances.move(this, cur, cur - cents);
+        return true;
+    }
+
+    // Velocity rules; checked and counted under the account's stripe, alongside the debit
+
+    // True if a debit of cents (debits of them in all) would break a rule; counts the rejection.
+    private boolean overVelocity(long now, int debits, long cents) {
+        VelocityRule[] rules = velocityRules;
+        if (rules.length == 0) return false;
+        VelocityWindow w = velocity;
+        if (w == null || w.rules != rules) velocity = w = new VelocityWindow(rules); // first debit under these rules
+        VelocityRule broken = w.check(now, debits, cents);
+        if (broken == null) return false;
+        broken.rejected();
+        VELOCITY_REJECTIONS.increment();
+        return true;
+    }
+
+    private void countDebits(long now, int debits, long cents) {
+        VelocityWindow w = velocity;
+        if (w != null && w.rules == velocityRules) w.record(now, debits, cents);
+    }
+
+    // History; appended under the account's stripe, alongside the balance change
+
+    private void record(long now, TransactionLog.Type type, long counterpartyId, long cents) {
+        int retention = historyRetention;
+        if (retention == 0) return;
+        if (history == null) history = new TransactionLog(retention);
+        history.append(now, type, counterpartyId, cents, retention);
+    }
+
+    private static void recordTransfer(long now, User from, User to, long cents) {
+        from.record(now, TransactionLog.Type.TRANSFER_OUT, to.id, cents);
+        to.record(now, TransactionLog.Type.TRANSFER_IN, from.id, cents);
+    }
+
+    // one array copy under the stripe; visitors then run without holding it
+    private long[] historyRecords() {
+        ReentrantLock lock = stripeOf(this);
+        lock.lock();
+        try {
+            return history == null ? new long[0] : history.copy();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visits this account's retained history entries with
+     * fromMillis <= time < toMillis, oldest first. Returns how many.
+     */
+    public int history(long fromMillis, long toMillis, TransactionLog.Visitor v) throws IOException {
+        return TransactionLog.visitRange(historyRecords(), fromMillis, toMillis, v);
+    }
+
+    /** Visits the newest n retained history entries, oldest of them first. Returns how many. */
+    public int lastTransactions(int n, TransactionLog.Visitor v) throws IOException {
+        return TransactionLog.visitLast(historyRecords(), n, v);
+    }
+
+    /**
+     * Streams a CSV statement (time, type, counterparty, amount) of the
+     * retained entries in [fromMillis, toMillis) to out, one line per entry.
+     * Each line is formatted into one reused buffer, so the export allocates
+     * nothing per entry (bar the name of a counterparty that is gone).
+     */
+    public void writeStatement(Appendable out, long fromMillis, long toMillis) throws IOException {
+        out.append("time,type,counterparty,amount\n");
+        StringBuilder line = new StringBuilder(96);
+        char[] chars = out instanceof Writer ? new char[96] : null;
+        history(fromMillis, toMillis, (time, type, counterpartyId, cents) -> {
+            line.setLength(0);
+            appendUtcMillis(line, time).append(',').append(type.name()).append(',');
+            if (counterpartyId != 0) line.append(counterpartyName(counterpartyId));
+            line.append(',');
+            if (!type.isCredit()) line.append('-');
+            line.append(cents / 100).append('.').append((char) ('0' + cents % 100 / 10)).append((char) ('0' + cents % 10))
+                    .append('\n');
+            if (chars == null) {
+                out.append(line);
+            } else {
+                // Writer.append(CharSequence) would copy the line into a String first
+                char[] buf = chars.length >= line.length() ? chars : new char[line.length()];
+                line.getChars(0, line.length(), buf, 0);
+                ((Writer) out).write(buf, 0, line.length());
+            }
+        });
+    }
+
+    // yyyy-MM-ddTHH:mm:ss.SSSZ in UTC, like Instant.toString but always with millis
+    private static StringBuilder appendUtcMillis(StringBuilder sb, long epochMillis) {
+        long days = Math.floorDiv(epochMillis, 86_400_000L);
+        int millisOfDay = (int) Math.floorMod(epochMillis, 86_400_000L);
+        // civil date from days since 1970-01-01 (proleptic Gregorian, eras of 400 years)
+        long z = days + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year >= 0 && year < 1000) sb.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        sb.append(year).append('-');
+        appendTwoDigits(sb, month).append('-');
+        appendTwoDigits(sb, day).append('T');
+        appendTwoDigits(sb, millisOfDay / 3_600_000).append(':');
+        appendTwoDigits(sb, millisOfDay / 60_000 % 60).append(':');
+        appendTwoDigits(sb, millisOfDay / 1000 % 60).append('.');
+        int millis = millisOfDay % 1000;
+        return sb.append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10)).append('Z');
+    }
+
+    private static StringBuilder appendTwoDigits(StringBuilder sb, int n) {
+        return sb.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
+    }
+
+    /** The username behind an account id, or "#id" once that account is gone. */
+    static String counterpartyName(long id) {
+        User u = accounts.view.find(id);
+        return u != null ? u.username : "#" + id;
+    }
+
+    // Legacy double API, rounded to the nearest cent
+    public double getBalance() { return balanceCents / 100.0; }
+
+    public void deposit(double amt) {
+        if (amt > 0) depositCents(toCents(amt));
+    }
+
+    public boolean withdraw(double amt) {
+        return amt > 0 && withdrawCents(toCents(amt));
+    }
+
+    /** Checks a password on the calling thread; with PBKDF2 on this is deliberately slow. */
     public boolean authenticate(String attemptedPassword) {
-        byte[] salt = Base64.getDecoder().decode(saltBase64);
-        byte[] attemptedHash = hash(attemptedPassword, salt);
-        String attemptedHashBase64 = Base64.getEncoder().encodeToString(attemptedHash);
-        return attemptedHashBase64.equals(passwordHashBase64);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            return ok = credential.verify(attemptedPassword);
+        } finally {
+            METRICS.record(UserMetrics.Op.AUTHENTICATE, start, ok);
+        }
+    }
+
+    /**
+     * Checks a password on the shared verifier pool, for callers that must not
+     * block (the EDT) or that check many at once. Completes exceptionally with
+     * RejectedExecutionException if too many checks are already queued.
+     */
+    public CompletableFuture<Boolean> authenticateAsync(String attemptedPassword) {
+        long start = System.nanoTime(); // so the latency includes time queued for the pool
+        return credential.verifyAsync(attemptedPassword).whenComplete((ok, e) ->
+                METRICS.record(UserMetrics.Op.AUTHENTICATE, start, e == null && ok));
     }
 
     public void setPassword(String newPassword) {
-        byte[] salt = generateSalt();
-        this.saltBase64 = Base64.getEncoder().encodeToString(salt);
-        this.passwordHashBase64 = Base64.getEncoder().encodeToString(hash(newPassword, salt));
+        applyPassword(Credential.create(newPassword, kdfIterations));
+    }
+
+    /**
+     * setPassword with the new password hashed on the shared verifier pool,
+     * for callers that must not block (the EDT); the credential is then
+     * swapped in and journaled on the pool thread. Completes exceptionally
+     * with RejectedExecutionException if too many hashes and checks are
+     * already queued.
+     */
+    public CompletableFuture<Void> setPasswordAsync(String newPassword) {
+        return Credential.createAsync(newPassword, kdfIterations).thenAccept(this::applyPassword);
+    }
+
+    private void applyPassword(Credential c) {
+        long ticket = 0;
+        GATE.enter();
+        try {
+            // log under the monitor so two password changes reach the journal in apply order
+            synchronized (this) {
+                this.credential = c;
+                UserJournal j = journal;
+                if (j != null) ticket = j.logPassword(id, c);
+            }
+        } finally {
+            GATE.exit();
+        }
+        awaitDurable(ticket);
     }
 
     @Override
     public String toString() {
-        return username + " (Balance: $" + String.format("%.2f", balance) + ")";
+        return username + " (Balance: $" + String.format("%.2f", getBalance()) + ")";
+    }
+
+    /**
+     * Case-folded username -> user, plus the published UserView (id order,
+     * for view() and lookups by id) and case-folded name order for prefix
+     * and range queries.
+     */
+    private static final class Accounts {
+        final ConcurrentHashMap<String, User> byName;
+        volatile UserView view = UserView.EMPTY;
+        final ConcurrentSkipListMap<String, User> byKey = new ConcurrentSkipListMap<>();
+        final BalanceIndex balances = new BalanceIndex();
+
+        Accounts(int expected) {
+            byName = new ConcurrentHashMap<>(expected);
+        }
+
+        // Called inside u's byName bin lock, so the adds and removes of one account
+        // reach the view in order; other accounts' changes may race, hence the CAS.
+        void publish(User u) {
+            UserView v;
+            do {
+                v = view;
+            } while (!VIEW.compareAndSet(this, v, v.with(u)));
+        }
+
+        void unpublish(User u) {
+            UserView v;
+            do {
+                v = view;
+            } while (!VIEW.compareAndSet(this, v, v.without(u)));
+        }
+    }
+
+    /**
+     * Told about store changes after they have been applied, on the thread
+     * that made them and outside every store lock. Transfers report a
+     * balance change for both sides. Implementations must be quick and
+     * thread-safe: hand anything slow, like Swing updates, to another thread.
+     */
+    public interface StoreListener {
+        void userAdded(User u);
+        void userRemoved(User u);
+        void balanceChanged(User u);
+        /** The whole store was swapped out (loadFromFile, openJournal); re-read it. */
+        void storeReplaced();
+    }
+
+    public static void addStoreListener(StoreListener l) {
+        LISTENERS.add(Objects.requireNonNull(l));
+    }
+
+    public static void removeStoreListener(StoreListener l) {
+        LISTENERS.remove(l);
+    }
+
+    private static void fireAdded(User u) {
+        for (StoreListener l : LISTENERS) l.userAdded(u);
+    }
+
+    private static void fireRemoved(User u) {
+        for (StoreListener l : LISTENERS) l.userRemoved(u);
+    }
+
+    private static void fireBalanceChanged(User u) {
+        for (StoreListener l : LISTENERS) l.balanceChanged(u);
+    }
+
+    private static void fireReplaced() {
+        for (StoreListener l : LISTENERS) l.storeReplaced();
+    }
+
+    /** Progress callback for slot saves and loads. */
+    @FunctionalInterface
+    public interface SlotProgress {
+        SlotProgress NONE = (records, bytes) -> { };
+
+        /**
+         * Running totals, reported every few thousand records and once at the
+         * end. Directory slots report from several threads at once.
+         */
+        void update(long records, long bytes);
+
+        /** Polled alongside update; returning true stops the save or load. */
+        default boolean isCancelled() {
+            return false;
+        }
     }
 
     // Static store API
+    /**
+     * The current version of the account list, in id (creation) order. It is
+     * immutable and never changes afterwards; getting it is one volatile read.
+     */
+    public static UserView view() {
+        return accounts.view;
+    }
+
+    /**
+     * A new list of the accounts, in id order, that the caller may sort or
+     * edit. Copies the whole store; readers that only iterate should use
+     * view() instead.
+     */
     public static List<User> getUsers() {
-        synchronized (USERS) {
-            return new ArrayList<>(USERS);
-        }
+        return new ArrayList<>(accounts.view);
+    }
+
+    public static int userCount() {
+        return accounts.byName.size();
+    }
+
+    /** Sum of every balance, kept running as money moves; O(1), no copying. */
+    public static long totalBalanceCents() {
+        return accounts.balances.totalCents();
+    }
+
+    /**
+     * The k largest accounts by balance, richest first. Reads only the top
+     * balance buckets that hold them, all of each but the last when it is
+     * below 16 cents (see BalanceIndex for the tie order there).
+     */
+    public static List<User> richest(int k) {
+        return accounts.balances.richest(k);
+    }
+
+    /**
+     * The balance at or below which a fraction p (0..1) of accounts fall, to
+     * within 1/16 of the value; -1 for an empty store. Independent of n.
+     */
+    public static long balancePercentileCents(double p) {
+        return accounts.balances.percentileCents(p);
     }
 
     public static Optional<User> findByUsername(String username) {
-        synchronized (USERS) {
-            return USERS.stream()
-                    .filter(u -> u.username.equalsIgnoreCase(username))
-                    .findFirst();
+        long start = System.nanoTime();
+        User u = username == null ? null : accounts.byName.get(normalize(username));
+        METRICS.record(UserMetrics.Op.FIND_BY_USERNAME, start, u != null);
+        return Optional.ofNullable(u);
+    }
+
+    /**
+     * Up to limit usernames starting with prefix (ignoring case), in
+     * case-folded order. O(log n + limit), so fine per keystroke.
+     */
+    public static List<String> usernamesWithPrefix(String prefix, int limit) {
+        String p = normalize(prefix == null ? "" : prefix);
+        List<String> out = new ArrayList<>(Math.min(limit, 64));
+        for (Map.Entry<String, User> e : accounts.byKey.tailMap(p, true).entrySet()) {
+            if (out.size() >= limit || !e.getKey().startsWith(p)) break;
+            out.add(e.getValue().username);
+        }
+        return out;
+    }
+
+    /**
+     * One page of usernames in case-folded order: up to limit names that sort
+     * after {@code after} (exclusive; null starts at the beginning). Pass the
+     * last name of a page to get the next one.
+     */
+    public static List<String> usernamesAfter(String after, int limit) {
+        ConcurrentNavigableMap<String, User> tail = after == null
+                ? accounts.byKey : accounts.byKey.tailMap(normalize(after), false);
+        List<String> out = new ArrayList<>(Math.min(limit, 64));
+        for (User u : tail.values()) {
+            if (out.size() >= limit) break;
+            out.add(u.username);
         }
+        return out;
     }
 
     public static boolean addUser(String username, String rawPassword) {
-        if (username == null || username.trim().isEmpty()) return false;
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            return ok = applyAddUser(username, rawPassword);
+        } finally {
+            METRICS.record(UserMetrics.Op.ADD_USER, start, ok);
+        }
+    }
+
+    /**
+     * addUser with the password hashed on the shared verifier pool, for
+     * callers that must not block (the EDT); the account is then added and
+     * journaled on the pool thread. Completes exceptionally with
+     * RejectedExecutionException if too many hashes and checks are queued.
+     */
+    public static CompletableFuture<Boolean> addUserAsync(String username, String rawPassword) {
+        long start = System.nanoTime(); // so the latency includes time queued for the pool
+        if (!isValidUsername(username) || isNameTaken(username)) {
+            METRICS.record(UserMetrics.Op.ADD_USER, start, false);
+            return CompletableFuture.completedFuture(false);
+        }
         String n = username.trim();
-        synchronized (USERS) {
-            boolean exists = USERS.stream().anyMatch(u -> u.username.equalsIgnoreCase(n));
-            if (exists) return false;
-            USERS.add(new User(n, rawPassword));
-            return true;
+        return Credential.createAsync(rawPassword, kdfIterations)
+                .thenApply(c -> applyAddUser(n, c))
+                .whenComplete((ok, e) -> METRICS.record(UserMetrics.Op.ADD_USER, start, e == null && ok));
+    }
+
+    private static boolean applyAddUser(String username, String rawPassword) {
+        if (!isValidUsername(username)) return false;
+        String n = username.trim();
+        if (accounts.byName.containsKey(normalize(n))) return false;
+        // hash outside the index so the bin lock is only held for the insert itself
+        return applyAddUser(n, Credential.create(rawPassword, kdfIterations));
+    }
+
+    // n is trimmed and valid; c already hashed
+    private static boolean applyAddUser(String n, Credential c) {
+        User created = new User(0, n, c);
+        long[] ticket = new long[1];
+        boolean added;
+        GATE.enter();
+        try {
+            Accounts a = accounts;
+            added = a.byName.computeIfAbsent(created.key, key -> {
+                created.id = NEXT_ID.incrementAndGet();
+                // journal the add before the account is reachable, so no deposit to it can be logged first
+                UserJournal j = journal;
+                if (j != null) ticket[0] = j.logAdd(created.id, created.username, created.credential);
+                a.balances.add(created, 0);
+                created.registered = true;
+                a.publish(created);
+                a.byKey.put(key, created);
+                return created;
+            }) == created;
+        } finally {
+            GATE.exit();
+        }
+        awaitDurable(ticket[0]);
+        if (added) fireAdded(created);
+        return added;
+    }
+
+    /**
+     * Adds a batch of accounts whose credentials are already hashed, with
+     * opening balances (recorded and journaled as deposits). The gate is
+     * entered and durability awaited once for the whole batch rather than
+     * per account. Returns which entries were added; the others had blank
+     * names or names already taken. Used by UserImporter.
+     */
+    static boolean[] addUsers(String[] usernames, Credential[] credentials, long[] openingCents, int n) {
+        User[] created = new User[n];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            if (!isValidUsername(usernames[i]) || openingCents[i] < 0) continue;
+            User u = new User(0, usernames[i].trim(), credentials[i]);
+            u.balanceCents = openingCents[i];
+            // not visible to other threads until published below, so no stripe is needed
+            if (openingCents[i] > 0) u.record(now, TransactionLog.Type.DEPOSIT, 0, openingCents[i]);
+            created[i] = u;
+        }
+        boolean[] added = new boolean[n];
+        long[] ticket = new long[1];
+        GATE.enter();
+        try {
+            Accounts a = accounts;
+            for (int i = 0; i < n; i++) {
+                User u = created[i];
+                if (u == null) continue;
+                // same steps as applyAddUser, inside the bin lock so a concurrent remove is journaled in order
+                added[i] = a.byName.computeIfAbsent(u.key, key -> {
+                    u.id = NEXT_ID.incrementAndGet();
+                    UserJournal j = journal;
+                    if (j != null) {
+                        ticket[0] = j.logAdd(u.id, u.username, u.credential);
+                        if (u.balanceCents > 0) ticket[0] = j.logDeposit(u.id, u.balanceCents);
+                    }
+                    a.balances.add(u, u.balanceCents);
+                    u.registered = true;
+                    a.publish(u);
+                    a.byKey.put(key, u);
+                    return u;
+                }) == u;
+            }
+        } finally {
+            GATE.exit();
         }
+        awaitDurable(ticket[0]); // tickets are in log order, so the last one covers the batch
+        for (int i = 0; i < n; i++) if (added[i]) fireAdded(created[i]);
+        return added;
+    }
+
+    /** True if an account with this name (case-insensitively, trimmed) exists. */
+    static boolean isNameTaken(String username) {
+        return accounts.byName.containsKey(normalize(username.trim()));
     }
 
     public static boolean removeUser(String username) {
-        synchronized (USERS) {
-            Iterator<User> it = USERS.iterator();
-            while (it.hasNext()) {
-                User u = it.next();
-                if (u.username.equalsIgnoreCase(username)) {
-                    it.remove();
-                    return true;
-                }
+        if (username == null) return false;
+        User u = accounts.byName.get(normalize(username));
+        if (u == null) return false;
+        long[] ticket = new long[1];
+        boolean[] removed = new boolean[1];
+        GATE.enter();
+        try {
+            // hold the account's stripe so no transfer touching it is half-way through
+            ReentrantLock lock = stripeOf(u);
+            lock.lock();
+            try {
+                // log inside the bin lock so a re-add of the same name is journaled after this
+                Accounts a = accounts;
+                a.byName.computeIfPresent(u.key, (k, cur) -> {
+                    if (cur != u) return cur;
+                    a.unpublish(u);
+                    a.byKey.remove(k, u);
+                    a.balances.remove(u, u.balanceCents);
+                    u.registered = false; // a running snapshot still has it, at its last balance
+                    UserJournal j = journal;
+                    if (j != null) ticket[0] = j.logRemove(u.id);
+                    removed[0] = true;
+                    return null;
+                });
+            } finally {
+                lock.unlock();
             }
-            return false;
+        } finally {
+            GATE.exit();
         }
+        awaitDurable(ticket[0]);
+        if (removed[0]) fireRemoved(u);
+        return removed[0];
     }
 
     public static boolean transfer(String fromUsername, String toUsername, double amount) {
-        if (amount <= 0) return false;
-        synchronized (USERS) {
-            Optional<User> fromOpt = USERS.stream().filter(u -> u.username.equalsIgnoreCase(fromUsername)).findFirst();
-            Optional<User> toOpt = USERS.stream().filter(u -> u.username.equalsIgnoreCase(toUsername)).findFirst();
-            if (fromOpt.isEmpty() || toOpt.isEmpty()) return false;
-            User from = fromOpt.get();
-            User to = toOpt.get();
-            // lock order by username to avoid deadlock
-            User a = (from.username.compareToIgnoreCase(to.username) <= 0) ? from : to;
-            User b = (a == from) ? to : from;
-            synchronized (a) {
-                synchronized (b) {
-                    if (from.withdraw(amount)) {
-                        to.deposit(amount);
-                        return true;
-                    } else {
-                        return false;
+        return amount > 0 && transferCents(fromUsername, toUsername, toCents(amount));
+    }
+
+    public static boolean transferCents(String fromUsername, String toUsername, long cents) {
+        long start = System.nanoTime();
+        UserMetrics.Outcome outcome = UserMetrics.Outcome.FAILURE;
+        try {
+            outcome = applyTransfer(fromUsername, toUsername, cents);
+            return outcome == UserMetrics.Outcome.SUCCESS;
+        } finally {
+            METRICS.record(UserMetrics.Op.TRANSFER, start, outcome);
+        }
+    }
+
+    /**
+     * transferCents that runs at most once per requestId, for callers that
+     * retry on timeouts: a call with an id seen in the last
+     * TRANSFER_ID_WINDOW_MINUTES (and among the last TRANSFER_ID_CAPACITY
+     * ids) returns the first call's result, or rethrows its exception,
+     * without moving anything. A retry that arrives while the first call is
+     * still running waits for it. Reusing an id for a different transfer
+     * throws IllegalArgumentException.
+     *
+     * Ids are remembered in memory only, not journaled: after a restart,
+     * or once an id has been forgotten, the same id runs again.
+     */
+    public static boolean transferOnce(String requestId, String fromUsername, String toUsername, long cents) {
+        IdempotencyCache.Entry attempt = new IdempotencyCache.Entry(requestId, fromUsername, toUsername, cents);
+        IdempotencyCache.Entry first = TRANSFER_IDS.claim(attempt);
+        if (first != null) {
+            if (!first.sameRequest(attempt)) {
+                throw new IllegalArgumentException("Request id " + requestId + " was already used for another transfer");
+            }
+            return first.await();
+        }
+        try {
+            boolean ok = transferCents(fromUsername, toUsername, cents);
+            attempt.succeeded(ok);
+            return ok;
+        } catch (RuntimeException | Error e) {
+            attempt.failed(e);
+            throw e;
+        }
+    }
+
+    /** Retries transferOnce has answered from its memory of earlier request ids. */
+    public static long transferRetriesAnswered() {
+        return TRANSFER_IDS.replays();
+    }
+
+    /**
+     * Limits withdrawals and outgoing transfers of every account to these
+     * rules, replacing the ones before; no rules turns the limits off. A
+     * debit that would break any rule fails (as VELOCITY_LIMIT in the
+     * metrics and in transferBatch) and leaves the balance alone. Accounts
+     * start counting afresh under the new rules.
+     */
+    public static void setVelocityRules(VelocityRule... rules) {
+        VelocityRule[] copy = rules.clone();
+        for (VelocityRule r : copy) Objects.requireNonNull(r, "rule");
+        velocityRules = copy;
+    }
+
+    public static List<VelocityRule> getVelocityRules() {
+        return List.of(velocityRules);
+    }
+
+    /** Debits refused by velocity rules since startup; each rule also counts its own. */
+    public static long velocityRejections() {
+        return VELOCITY_REJECTIONS.sum();
+    }
+
+    private static UserMetrics.Outcome applyTransfer(String fromUsername, String toUsername, long cents) {
+        if (cents <= 0) return UserMetrics.Outcome.FAILURE;
+        Accounts accts = accounts;
+        User from = fromUsername == null ? null : accts.byName.get(normalize(fromUsername));
+        User to = toUsername == null ? null : accts.byName.get(normalize(toUsername));
+        if (from == null || to == null) return UserMetrics.Outcome.FAILURE;
+        CompletableFuture<UserMetrics.Outcome> queued = submitToLedger(UserLedger.TRANSFER, from, to, cents);
+        if (queued != null) return awaitLedger(queued);
+        long[] ticket = new long[1];
+        UserMetrics.Outcome outcome;
+        GATE.enter();
+        try {
+            outcome = postTransfer(from, to, cents, ticket);
+        } finally {
+            GATE.exit();
+        }
+        if (outcome != UserMetrics.Outcome.SUCCESS) return outcome;
+        awaitDurable(ticket[0]);
+        fireBalanceChanged(from);
+        fireBalanceChanged(to);
+        return outcome;
+    }
+
+    // Caller is inside the gate, and handles durability and listeners.
+    private static UserMetrics.Outcome postTransfer(User from, User to, long cents, long[] ticket) {
+        // only the two accounts' stripes are held; lock order by stripe index avoids deadlock
+        ReentrantLock a = stripeOf(from);
+        ReentrantLock b = stripeOf(to);
+        if (stripeIndex(from) > stripeIndex(to)) {
+            ReentrantLock t = a; a = b; b = t;
+        }
+        a.lock();
+        try {
+            if (b != a) b.lock();
+            try {
+                // either side may have been removed while we waited for the locks
+                if (!isRegistered(from) || !isRegistered(to)) return UserMetrics.Outcome.FAILURE;
+                long now = System.currentTimeMillis();
+                if (from.overVelocity(now, 1, cents)) return UserMetrics.Outcome.VELOCITY_LIMIT;
+                if (!from.takeCents(cents)) return UserMetrics.Outcome.INSUFFICIENT_FUNDS;
+                if (!to.addCents(cents)) {
+                    from.addCents(cents);
+                    return UserMetrics.Outcome.FAILURE;
+                }
+                from.countDebits(now, 1, cents);
+                recordTransfer(now, from, to, cents);
+                UserJournal j = journal;
+                if (j != null) ticket[0] = j.logTransfer(from.id, to.id, cents);
+                return UserMetrics.Outcome.SUCCESS;
+            } finally {
+                if (b != a) b.unlock();
+            }
+        } finally {
+            a.unlock();
+        }
+    }
+
+    // Ledger mode (see UserLedger)
+
+    /**
+     * Routes deposits, withdrawals and transfers from now on through a ring
+     * buffer of capacity slots (a power of two) to a single ledger thread,
+     * which applies them in one total order with one journal wait per batch
+     * instead of one per call. Callers still block for their result unless
+     * they use the Async variants. Other mutations (adds, removes, batches)
+     * keep their direct paths and interleave safely. No-op if running.
+     */
+    public static synchronized void startLedger(int capacity) {
+        if (ledger == null) ledger = new UserLedger(new LedgerHandler(), capacity);
+    }
+
+    public static void startLedger() {
+        startLedger(UserLedger.DEFAULT_CAPACITY);
+    }
+
+    /** Applies everything already queued, then goes back to direct, lock-based calls. */
+    public static synchronized void stopLedger() {
+        UserLedger l = ledger;
+        if (l == null) return;
+        l.stop();
+        ledger = null;
+    }
+
+    public static boolean isLedgerRunning() {
+        return ledger != null;
+    }
+
+    /**
+     * depositCents without waiting: with the ledger running, completes on the
+     * ledger thread once applied and durable; otherwise runs it now.
+     */
+    public CompletableFuture<Boolean> depositCentsAsync(long cents) {
+        if (cents <= 0) return CompletableFuture.completedFuture(false);
+        return async(UserMetrics.Op.DEPOSIT, UserLedger.DEPOSIT, this, null, cents);
+    }
+
+    public CompletableFuture<Boolean> withdrawCentsAsync(long cents) {
+        if (cents <= 0) return CompletableFuture.completedFuture(false);
+        return async(UserMetrics.Op.WITHDRAW, UserLedger.WITHDRAW, this, null, cents);
+    }
+
+    public static CompletableFuture<Boolean> transferCentsAsync(String fromUsername, String toUsername, long cents) {
+        Accounts accts = accounts;
+        User from = fromUsername == null ? null : accts.byName.get(normalize(fromUsername));
+        User to = toUsername == null ? null : accts.byName.get(normalize(toUsername));
+        if (cents <= 0 || from == null || to == null) return CompletableFuture.completedFuture(false);
+        return async(UserMetrics.Op.TRANSFER, UserLedger.TRANSFER, from, to, cents);
+    }
+
+    private static CompletableFuture<Boolean> async(UserMetrics.Op op, byte kind, User a, User b, long cents) {
+        long start = System.nanoTime();
+        CompletableFuture<UserMetrics.Outcome> queued = submitToLedger(kind, a, b, cents);
+        if (queued == null) {
+            boolean ok = switch (kind) {
+                case UserLedger.DEPOSIT -> a.depositCents(cents);
+                case UserLedger.WITHDRAW -> a.withdrawCents(cents);
+                default -> transferCents(a.username, b.username, cents);
+            };
+            return CompletableFuture.completedFuture(ok);
+        }
+        return queued.handle((outcome, e) -> {
+            METRICS.record(op, start, e == null ? outcome : UserMetrics.Outcome.FAILURE);
+            if (e != null) throw e instanceof CompletionException ce ? ce : new CompletionException(e);
+            return outcome == UserMetrics.Outcome.SUCCESS;
+        });
+    }
+
+    // null when there is no ledger, it is stopping, or this is the ledger thread itself
+    private static CompletableFuture<UserMetrics.Outcome> submitToLedger(byte kind, User a, User b, long cents) {
+        UserLedger l = ledger;
+        if (l == null || l.isLedgerThread()) return null;
+        return l.submit(kind, a, b, cents);
+    }
+
+    private static UserMetrics.Outcome awaitLedger(CompletableFuture<UserMetrics.Outcome> queued) {
+        try {
+            return queued.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /** Applies ledger events with the same steps as the direct calls. */
+    private static final class LedgerHandler implements UserLedger.Handler {
+        @Override
+        public void enterBatch() {
+            GATE.enter();
+        }
+
+        @Override
+        public void exitBatch() {
+            GATE.exit();
+        }
+
+        @Override
+        public UserMetrics.Outcome apply(byte kind, User a, User b, long cents, long[] ticket) {
+            return switch (kind) {
+                case UserLedger.DEPOSIT -> a.postCredit(TransactionLog.Type.DEPOSIT, cents, ticket);
+                case UserLedger.WITHDRAW -> a.postWithdraw(cents, ticket);
+                case UserLedger.TRANSFER -> postTransfer(a, b, cents, ticket);
+                default -> throw new IllegalArgumentException("Unknown ledger event " + kind);
+            };
+        }
+
+        @Override
+        public void awaitDurable(long ticket) {
+            User.awaitDurable(ticket);
+        }
+
+        @Override
+        public void applied(byte kind, User a, User b) {
+            fireBalanceChanged(a);
+            if (b != null) fireBalanceChanged(b);
+        }
+    }
+
+    /** One transfer in a transferBatch call, amount in cents. */
+    public static final class TransferRequest {
+        private final String from;
+        private final String to;
+        private final long cents;
+
+        public TransferRequest(String from, String to, long cents) {
+            this.from = from;
+            this.to = to;
+            this.cents = cents;
+        }
+
+        public static TransferRequest ofDollars(String from, String to, double amount) {
+            return new TransferRequest(from, to, amount > 0 ? toCents(amount) : 0);
+        }
+
+        public String getFrom() { return from; }
+        public String getTo() { return to; }
+        public long getCents() { return cents; }
+    }
+
+    /** Per-request outcome of transferBatch. */
+    public enum TransferResult {
+        OK,
+        INVALID_AMOUNT,
+        NO_SUCH_USER,
+        INSUFFICIENT_FUNDS,
+        /** The sender is over one of its velocity rules (see setVelocityRules). */
+        VELOCITY_LIMIT,
+        /** Valid on its own, but not applied because another request in an all-or-nothing batch failed. */
+        ABORTED
+    }
+
+    public static List<TransferResult> transferBatch(List<TransferRequest> requests) {
+        return transferBatch(requests, false);
+    }
+
+    /**
+     * Applies many transfers with one lookup per distinct account and one
+     * ordered lock acquisition for the whole batch.
+     *
+     * Normally requests are applied in list order and each one succeeds or
+     * fails on its own. With allOrNothing, the batch is settled on net
+     * positions: every account's net debit must be covered, otherwise
+     * nothing is applied.
+     */
+    public static List<TransferResult> transferBatch(List<TransferRequest> requests, boolean allOrNothing) {
+        int n = requests.size();
+        TransferResult[] results = new TransferResult[n];
+        User[] froms = new User[n];
+        User[] tos = new User[n];
+
+        // resolve every account up front, in one pass and without holding any lock
+        Accounts accts = accounts;
+        BitSet stripes = new BitSet(STRIPE_COUNT);
+        for (int i = 0; i < n; i++) {
+            TransferRequest r = requests.get(i);
+            if (r.cents <= 0) {
+                results[i] = TransferResult.INVALID_AMOUNT;
+                continue;
+            }
+            froms[i] = resolve(accts, r.from);
+            tos[i] = resolve(accts, r.to);
+            if (froms[i] == null || tos[i] == null) {
+                results[i] = TransferResult.NO_SUCH_USER;
+                continue;
+            }
+            stripes.set(stripeIndex(froms[i]));
+            stripes.set(stripeIndex(tos[i]));
+        }
+
+        long ticket = 0;
+        GATE.enter();
+        try {
+            // same ascending stripe order as transfer(), so batches and single transfers never deadlock
+            for (int s = stripes.nextSetBit(0); s >= 0; s = stripes.nextSetBit(s + 1)) STRIPES[s].lock();
+            try {
+                for (int i = 0; i < n; i++) {
+                    if (results[i] == null && (!isRegistered(froms[i]) || !isRegistered(tos[i]))) {
+                        results[i] = TransferResult.NO_SUCH_USER;
                     }
                 }
+                long now = System.currentTimeMillis();
+                if (allOrNothing) {
+                    ticket = settleNet(requests, froms, tos, results, now);
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        if (results[i] != null) continue;
+                        long cents = requests.get(i).cents;
+                        if (froms[i].overVelocity(now, 1, cents)) {
+                            results[i] = TransferResult.VELOCITY_LIMIT;
+                        } else if (!froms[i].takeCents(cents)) {
+                            results[i] = TransferResult.INSUFFICIENT_FUNDS;
+                        } else if (!tos[i].addCents(cents)) {
+                            froms[i].addCents(cents);
+                            results[i] = TransferResult.INSUFFICIENT_FUNDS;
+                        } else {
+                            results[i] = TransferResult.OK;
+                            froms[i].countDebits(now, 1, cents);
+                            recordTransfer(now, froms[i], tos[i], cents);
+                            UserJournal j = journal;
+                            if (j != null) ticket = j.logTransfer(froms[i].id, tos[i].id, cents);
+                        }
+                    }
+                }
+            } finally {
+                for (int s = stripes.nextSetBit(0); s >= 0; s = stripes.nextSetBit(s + 1)) STRIPES[s].unlock();
+            }
+        } finally {
+            GATE.exit();
+        }
+        awaitDurable(ticket);
+        if (!LISTENERS.isEmpty()) {
+            for (int i = 0; i < n; i++) {
+                if (results[i] != TransferResult.OK) continue;
+                fireBalanceChanged(froms[i]);
+                fireBalanceChanged(tos[i]);
             }
         }
+        return Arrays.asList(results);
     }
 
-    public static String[] usernames() {
-        synchronized (USERS) {
-            return USERS.stream().map(u -> u.username).toArray(String[]::new);
+    private static User resolve(Accounts accts, String username) {
+        return username == null ? null : accts.byName.get(normalize(username));
+    }
+
+    // all-or-nothing part of transferBatch; caller holds the gate and every stripe involved
+    private static long settleNet(List<TransferRequest> requests, User[] froms, User[] tos, TransferResult[] results,
+                                  long now) {
+        int n = requests.size();
+        boolean failed = false;
+        for (TransferResult r : results) failed |= r != null;
+        if (failed) {
+            for (int i = 0; i < n; i++) if (results[i] == null) results[i] = TransferResult.ABORTED;
+            return 0;
+        }
+
+        IdentityHashMap<User, long[]> net = new IdentityHashMap<>();
+        IdentityHashMap<User, long[]> sent = new IdentityHashMap<>(); // debits and gross cents, for the velocity rules
+        for (int i = 0; i < n; i++) {
+            long cents = requests.get(i).cents;
+            net.computeIfAbsent(froms[i], u -> new long[1])[0] -= cents;
+            net.computeIfAbsent(tos[i], u -> new long[1])[0] += cents;
+            long[] out = sent.computeIfAbsent(froms[i], u -> new long[2]);
+            out[0]++;
+            out[1] += cents;
+        }
+        // every request counts against its sender, even where the batch nets it out
+        for (Map.Entry<User, long[]> e : sent.entrySet()) {
+            if (!e.getKey().overVelocity(now, (int) e.getValue()[0], e.getValue()[1])) continue;
+            for (int i = 0; i < n; i++) {
+                results[i] = froms[i] == e.getKey() ? TransferResult.VELOCITY_LIMIT : TransferResult.ABORTED;
+            }
+            return 0;
+        }
+
+        // debits first: they are the only step that can fail, and undoing them is a plain credit
+        List<User> debited = new ArrayList<>();
+        User shortAccount = null;
+        for (Map.Entry<User, long[]> e : net.entrySet()) {
+            long delta = e.getValue()[0];
+            if (delta >= 0) continue;
+            if (!e.getKey().takeCents(-delta)) {
+                shortAccount = e.getKey();
+                break;
+            }
+            debited.add(e.getKey());
+        }
+        if (shortAccount == null) {
+            List<User> credited = new ArrayList<>();
+            for (Map.Entry<User, long[]> e : net.entrySet()) {
+                long delta = e.getValue()[0];
+                if (delta <= 0) continue;
+                if (!e.getKey().addCents(delta)) {
+                    // only on overflow; take back what was credited and fall through to the abort path
+                    for (User u : credited) u.takeCents(net.get(u)[0]);
+                    shortAccount = e.getKey();
+                    break;
+                }
+                credited.add(e.getKey());
+            }
+        }
+        if (shortAccount != null) {
+            for (User u : debited) u.addCents(-net.get(u)[0]);
+            for (int i = 0; i < n; i++) {
+                results[i] = froms[i] == shortAccount ? TransferResult.INSUFFICIENT_FUNDS : TransferResult.ABORTED;
+            }
+            return 0;
+        }
+
+        for (Map.Entry<User, long[]> e : sent.entrySet()) e.getKey().countDebits(now, (int) e.getValue()[0], e.getValue()[1]);
+        long ticket = 0;
+        UserJournal j = journal;
+        for (int i = 0; i < n; i++) {
+            results[i] = TransferResult.OK;
+            recordTransfer(now, froms[i], tos[i], requests.get(i).cents);
+            if (j != null) ticket = j.logTransfer(froms[i].id, tos[i].id, requests.get(i).cents);
+        }
+        return ticket;
+    }
+
+    /**
+     * Month-end posting: applies schedule to every account, crediting
+     * interest and charging fees, and returns the totals.
+     *
+     * Every account is posted against its balance as of one cut of the
+     * store (the same copy-on-write cut a save takes), so the run is
+     * consistent however long it takes, and transfers keep running
+     * meanwhile. Postings are applied as credits and charges on the live
+     * balance, so nothing a transfer did since the cut is lost; a fee the
+     * live balance no longer covers takes it to 0 and the rest is counted
+     * as uncollected. Accounts removed since the cut are skipped, and those
+     * added since are not posted.
+     *
+     * The accounts are split into chunks of POSTING_CHUNK posted in parallel
+     * on the common fork-join pool, each under one gate entry and one
+     * journal wait. Postings are journaled as deposits and withdrawals and
+     * kept in history as INTEREST and FEE. They always take the striped
+     * locks, even while the ledger is running, so they are not in its
+     * sequence. Holds the snapshot permit, so saves and checkpoints wait
+     * until the run is done.
+     */
+    public static PostingSummary postToAll(PostingSchedule schedule) {
+        Objects.requireNonNull(schedule, "schedule");
+        long start = System.nanoTime();
+        UserSnapshot cut = beginSnapshot();
+        try {
+            User[] members = cut.members().toArray(new User[0]);
+            PostingSummary summary = ForkJoinPool.commonPool().invoke(new PostingTask(schedule, cut, members, 0, members.length));
+            summary.finish(System.nanoTime() - start);
+            return summary;
+        } finally {
+            finishCut();
+        }
+    }
+
+    private static final class PostingTask extends RecursiveTask<PostingSummary> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient PostingSchedule schedule;
+        private final transient UserSnapshot cut;
+        private final transient User[] members;
+        private final int lo;
+        private final int hi;
+
+        PostingTask(PostingSchedule schedule, UserSnapshot cut, User[] members, int lo, int hi) {
+            this.schedule = schedule;
+            this.cut = cut;
+            this.members = members;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected PostingSummary compute() {
+            if (hi - lo <= POSTING_CHUNK) return postChunk(schedule, cut, members, lo, hi);
+            int mid = (lo + hi) >>> 1;
+            PostingTask left = new PostingTask(schedule, cut, members, lo, mid);
+            left.fork();
+            PostingSummary right = new PostingTask(schedule, cut, members, mid, hi).compute();
+            return right.merge(left.join());
+        }
+    }
+
+    private static PostingSummary postChunk(PostingSchedule schedule, UserSnapshot cut, User[] members, int lo, int hi) {
+        PostingSummary summary = new PostingSummary();
+        User[] changed = new User[hi - lo];
+        int nChanged = 0;
+        long[] ticket = new long[1];
+        long lastTicket = 0;
+        GATE.enter();
+        try {
+            for (int i = lo; i < hi; i++) {
+                User u = members[i];
+                summary.account();
+                long cents;
+                try {
+                    cents = schedule.postingCents(u.balanceAt(cut));
+                } catch (ArithmeticException e) {
+                    summary.skip(); // the posting overflowed
+                    continue;
+                }
+                if (cents == 0) continue;
+                ticket[0] = 0;
+                if (cents > 0) {
+                    if (u.postCredit(TransactionLog.Type.INTEREST, cents, ticket) != UserMetrics.Outcome.SUCCESS) {
+                        summary.skip();
+                        continue;
+                    }
+                    summary.credit(cents);
+                } else {
+                    long fee = cents == Long.MIN_VALUE ? Long.MAX_VALUE : -cents;
+                    long charged = u.postCharge(fee, ticket);
+                    if (charged < 0) {
+                        summary.skip();
+                        continue;
+                    }
+                    summary.charge(charged, fee);
+                    if (charged == 0) continue;
+                }
+                changed[nChanged++] = u;
+                lastTicket = Math.max(lastTicket, ticket[0]);
+            }
+        } finally {
+            GATE.exit();
         }
+        awaitDurable(lastTicket); // tickets are in log order, so the last one covers the chunk
+        if (!LISTENERS.isEmpty()) {
+            for (int i = 0; i < nChanged; i++) fireBalanceChanged(changed[i]);
+        }
+        return summary;
+    }
+
+    public static String[] usernames() {
+        UserView v = accounts.view;
+        String[] names = new String[v.size()];
+        int i = 0;
+        for (User u : v) names[i++] = u.username;
+        return names;
     }
 
-    // Persistence: serialize an ArrayList<User>
+    // Persistence: binary slot format (see UserSlotFormat); old serialized slots still load
+
+    /**
+     * Writes a consistent snapshot of all accounts to f. Other threads keep
+     * mutating the store while the file is written.
+     */
     public static void saveToFile(File f) throws IOException {
-        File parent = f.getParentFile();
-        if (parent != null && !parent.exists()) parent.mkdirs();
+        saveToFile(f, SlotProgress.NONE);
+    }
+
+    /**
+     * Like saveToFile(f), reporting progress as it goes. If the progress says
+     * it is cancelled the save stops with a CancellationException and f is
+     * left exactly as it was.
+     */
+    public static void saveToFile(File f, SlotProgress progress) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        UserSnapshot cut = beginSnapshot();
+        try {
+            writeSnapshot(f, cut, progress);
+            ok = true;
+        } finally {
+            finishCut();
+            METRICS.record(UserMetrics.Op.SAVE_TO_FILE, start, ok);
+        }
+    }
+
+    /**
+     * Like saveToFile, but only the (near-instant) cut happens on the calling
+     * thread; the file is written on a background thread.
+     */
+    public static CompletableFuture<Void> saveToFileAsync(File f) {
+        long start = System.nanoTime();
+        UserSnapshot cut = beginSnapshot();
+        try {
+            return CompletableFuture.runAsync(() -> {
+                boolean ok = false;
+                try {
+                    writeSnapshot(f, cut, SlotProgress.NONE);
+                    ok = true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    finishCut();
+                    METRICS.record(UserMetrics.Op.SAVE_TO_FILE, start, ok);
+                }
+            }, SNAPSHOT_WRITER);
+        } catch (RuntimeException e) {
+            finishCut();
+            throw e;
+        }
+    }
+
+    /** True if f is still in the pre-binary Java serialization format. */
+    public static boolean isLegacySlot(File f) throws IOException {
+        return !UserSlotFormat.isBinary(f);
+    }
+
+    public static void loadFromFile(File f) throws IOException, ClassNotFoundException {
+        loadFromFile(f, SlotProgress.NONE);
+    }
+
+    /**
+     * Like loadFromFile(f), reporting progress as it goes. The file is read
+     * off to the side while the current store keeps serving, so a cancelled
+     * load (CancellationException) leaves the store untouched.
+     */
+    public static void loadFromFile(File f, SlotProgress progress) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            applyLoad(f, progress);
+            ok = true;
+        } finally {
+            METRICS.record(UserMetrics.Op.LOAD_FROM_FILE, start, ok);
+        }
+    }
+
+    private static void applyLoad(File f, SlotProgress progress) throws IOException, ClassNotFoundException {
+        install(buildAccounts(readUsers(f, progress)), progress, f);
+    }
+
+    /**
+     * Writes a consistent snapshot of all accounts into the slot directory
+     * dir, split by username hash into shards that are encoded and written
+     * in parallel (see UserShardedSlot). Only chunks of accounts that are
+     * not already in the chunk store next to dir (parent/chunks) get
+     * written, so saving again after a few changes writes a few chunks. The
+     * cut is only held while balances are copied out, not while the files
+     * are written. Like saveToFile, a failed or cancelled save leaves the
+     * previous save in dir intact.
+     */
+    public static void saveToDirectory(File dir, SlotProgress progress) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            UserShardedSlot.Shard[] shards;
+            UserSnapshot cut = beginSnapshot();
+            try {
+                shards = UserShardedSlot.partition(cut, userCount());
+            } finally {
+                finishCut();
+            }
+            UserShardedSlot.write(dir, shards, progress);
+            ok = true;
+        } finally {
+            METRICS.record(UserMetrics.Op.SAVE_TO_FILE, start, ok);
+        }
+    }
+
+    public static void saveToDirectory(File dir) throws IOException {
+        saveToDirectory(dir, SlotProgress.NONE);
+    }
+
+    /**
+     * Replaces the store with the slot saved in dir by saveToDirectory. The
+     * shards are decoded and indexed in parallel while the current store
+     * keeps serving; only the final swap pauses writers. Cancelling
+     * (CancellationException) leaves the store untouched.
+     */
+    public static void loadFromDirectory(File dir, SlotProgress progress) throws IOException {
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Loader loader = new Loader(UserShardedSlot.recordCount(dir));
+            UserShardedSlot.read(dir, progress, loader::add); // each shard is added on the thread that decoded it
+            install(loader.build(), progress, dir);
+            ok = true;
+        } finally {
+            METRICS.record(UserMetrics.Op.LOAD_FROM_FILE, start, ok);
+        }
+    }
+
+    public static void loadFromDirectory(File dir) throws IOException {
+        loadFromDirectory(dir, SlotProgress.NONE);
+    }
+
+    /** Number of accounts in the slot saved in dir, from its manifest. */
+    public static long slotRecordCount(File dir) throws IOException {
+        return UserShardedSlot.recordCount(dir);
+    }
+
+    /** True if dir holds a slot written by saveToDirectory. */
+    public static boolean isSlotDirectory(File dir) {
+        return UserShardedSlot.isSlot(dir);
+    }
+
+    /**
+     * Deletes a slot written by saveToDirectory, dir itself if nothing else
+     * is in it, and the chunks no other slot next to it uses.
+     */
+    public static void deleteSlotDirectory(File dir) throws IOException {
+        UserShardedSlot.delete(dir);
+    }
+
+    // Swaps in a fully built store; writers are only paused for the swap itself.
+    private static void install(Accounts fresh, SlotProgress progress, File source) throws IOException {
+        if (progress.isCancelled()) throw new CancellationException("Load cancelled: " + source);
+        SNAPSHOT_PERMIT.acquireUninterruptibly();
+        UserSnapshot cut = null;
+        long gen = 0;
+        try {
+            GATE.pause();
+            try {
+                replaceAll(fresh);
+                // the journal's last snapshot no longer describes the store: start a new one
+                if (journal != null) {
+                    gen = journal.rotate();
+                    cut = cutPaused();
+                }
+            } finally {
+                GATE.resume();
+            }
+            if (cut != null) writeCheckpoint(gen, cut);
+        } finally {
+            finishCut();
+        }
+        fireReplaced();
+    }
+
+    // Journal
+
+    /**
+     * Recovers the store from the journal in dir (newest snapshot plus the
+     * segments after it), writes a fresh snapshot and then logs every
+     * mutation from here on. An empty dir starts from the current store.
+     */
+    public static synchronized void openJournal(File dir, UserJournal.FsyncPolicy policy, long intervalMillis)
+            throws IOException, ClassNotFoundException {
+        if (journal != null) throw new IllegalStateException("Journal already open in " + journalDir);
+        SNAPSHOT_PERMIT.acquireUninterruptibly();
+        try {
+            UserSnapshot cut;
+            long gen;
+            GATE.pause();
+            try {
+                long snapshot = UserJournal.latestSnapshot(dir);
+                if (snapshot >= 0) replaceAll(buildAccounts(readUsers(UserJournal.snapshotFile(dir, snapshot), SlotProgress.NONE)));
+                Replayer replayer = new Replayer();
+                for (long g : UserJournal.segmentsFrom(dir, Math.max(snapshot, 0))) {
+                    UserJournal.replay(UserJournal.segmentFile(dir, g), replayer);
+                }
+                gen = UserJournal.latestGeneration(dir) + 1;
+                journal = new UserJournal(dir, gen, policy, intervalMillis);
+                journalDir = dir;
+                cut = cutPaused();
+            } finally {
+                GATE.resume();
+            }
+            writeCheckpoint(gen, cut);
+        } finally {
+            finishCut();
+        }
+        fireReplaced();
+    }
+
+    /** Flushes and closes the journal; later mutations are no longer logged. */
+    public static synchronized void closeJournal() throws IOException {
+        UserJournal j = journal;
+        if (j == null) return;
+        GATE.pause();
+        try {
+            journal = null;
+        } finally {
+            GATE.resume();
+        }
+        j.close();
+    }
 
-        synchronized (USERS) {
-            ArrayList<User> snapshot = new ArrayList<>(USERS);
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f))) {
-                oos.writeObject(snapshot);
+    /**
+     * Writes a new journal snapshot and drops the segments it covers.
+     * Mutations only pause for the segment switch, not for the write.
+     */
+    public static synchronized void checkpoint() throws IOException {
+        if (journal == null) return;
+        SNAPSHOT_PERMIT.acquireUninterruptibly();
+        try {
+            UserSnapshot cut;
+            long gen;
+            GATE.pause();
+            try {
+                gen = journal.rotate();
+                cut = cutPaused();
+            } finally {
+                GATE.resume();
             }
+            writeCheckpoint(gen, cut);
+        } finally {
+            finishCut();
         }
     }
 
+    // snapshot-gen holds exactly what was logged before segment gen started
+    private static void writeCheckpoint(long gen, UserSnapshot cut) throws IOException {
+        writeSnapshot(UserJournal.snapshotFile(journalDir, gen), cut, SlotProgress.NONE);
+        journal.deleteBefore(gen);
+    }
+
+    // Snapshots
+
+    private static UserSnapshot beginSnapshot() {
+        SNAPSHOT_PERMIT.acquireUninterruptibly();
+        try {
+            GATE.pause();
+            try {
+                return cutPaused();
+            } finally {
+                GATE.resume();
+            }
+        } catch (RuntimeException e) {
+            SNAPSHOT_PERMIT.release();
+            throw e;
+        }
+    }
+
+    // Caller holds SNAPSHOT_PERMIT and the gate paused: nothing is mid-mutation.
+    private static UserSnapshot cutPaused() {
+        UserSnapshot cut = new UserSnapshot(epoch + 1, accounts.view);
+        epoch = cut.epoch;
+        activeCut = cut;
+        return cut;
+    }
+
+    private static void finishCut() {
+        activeCut = null;
+        SNAPSHOT_PERMIT.release();
+    }
+
+    /**
+     * Called before every balance change. The first change after a cut
+     * records the pre-change balance for that cut.
+     */
+    private void preserve() {
+        UserSnapshot cut = activeCut;
+        if (cut == null) return;
+        Frozen f = frozen;
+        if (f != null && f.epoch == cut.epoch) return;
+        FROZEN.compareAndSet(this, f, new Frozen(cut.epoch, balanceCents));
+    }
+
+    /** This account's balance as of the cut. */
+    long balanceAt(UserSnapshot cut) {
+        Frozen f = frozen;
+        if (f != null && f.epoch == cut.epoch) return f.cents;
+        // untouched since the cut: freeze the current value ourselves, unless a writer beats us
+        long cur = balanceCents;
+        if (FROZEN.compareAndSet(this, f, new Frozen(cut.epoch, cur))) return cur;
+        return frozen.cents;
+    }
+
+    private static void awaitDurable(long ticket) {
+        UserJournal j = journal;
+        if (ticket != 0 && j != null) j.awaitDurable(ticket);
+    }
+
+    /** Applies replayed records straight to the store, without logging them again. */
+    private static final class Replayer implements UserJournal.Handler {
+        @Override
+        public void added(long id, String username, Credential credential) {
+            register(accounts, new User(id, username, credential));
+        }
+
+        @Override
+        public void removed(long id) {
+            Accounts a = accounts;
+            User u = a.view.find(id);
+            if (u != null) {
+                a.unpublish(u);
+                a.byName.remove(u.key, u);
+                a.byKey.remove(u.key, u);
+                a.balances.remove(u, u.balanceCents);
+                u.registered = false;
+            }
+        }
+
+        // Balance records are deltas: they commute, so concurrent writers may have
+        // logged them in any order relative to each other.
+        @Override
+        public void deposited(long id, long cents) {
+            User u = accounts.view.find(id);
+            if (u == null) return;
+            long before = (long) BALANCE.getAndAdd(u, cents);
+            accounts.balances.move(u, before, before + cents);
+        }
+
+        @Override
+        public void withdrew(long id, long cents) {
+            User u = accounts.view.find(id);
+            if (u == null) return;
+            long before = (long) BALANCE.getAndAdd(u, -cents);
+            accounts.balances.move(u, before, before - cents);
+        }
+
+        @Override
+        public void transferred(long fromId, long toId, long cents) {
+            withdrew(fromId, cents);
+            deposited(toId, cents);
+        }
+
+        @Override
+        public void passwordChanged(long id, Credential credential) {
+            User u = accounts.view.find(id);
+            if (u != null) u.credential = credential;
+        }
+    }
+
+    // Store helpers
+
+    /** Writes a snapshot to f through a temp file, so a crash never leaves f half-written. */
+    private static void writeSnapshot(File f, UserSnapshot cut, SlotProgress progress) throws IOException {
+        File parent = f.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        File tmp = new File(parent, f.getName() + ".tmp");
+        try {
+            if (slotCompression) UserCompressedSlot.write(tmp, cut::forEach, progress);
+            else UserSlotFormat.write(tmp, cut::forEach, progress);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ArrayList<User> readUsers(File f, SlotProgress progress) throws IOException, ClassNotFoundException {
+        if (UserSlotFormat.isBinary(f)) return UserSlotFormat.read(f, progress);
+        ArrayList<User> users = readLegacyUsers(f);
+        progress.update(users.size(), f.length());
+        return users;
+    }
+
     @SuppressWarnings("unchecked")
-    public static void loadFromFile(File f) throws IOException, ClassNotFoundException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
+    private static ArrayList<User> readLegacyUsers(File f) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
             Object o = ois.readObject();
             if (!(o instanceof ArrayList)) {
                 throw new IOException("File does not contain user list");
             }
-            ArrayList<User> loaded = (ArrayList<User>) o;
-            synchronized (USERS) {
-                USERS.clear();
-                USERS.addAll(loaded);
+            return (ArrayList<User>) o;
+        }
+    }
+
+    private static Accounts buildAccounts(List<User> users) {
+        Loader loader = new Loader(users.size());
+        loader.add(users);
+        return loader.build();
+    }
+
+    /**
+     * Builds a new store from loaded accounts. add() fills the hash index
+     * and balance aggregates, which are concurrent, so shards can be added
+     * from several threads. build() then fills the two ordered indexes in
+     * key order: a skip list takes ascending inserts several times faster
+     * than the random order accounts arrive in.
+     */
+    private static final class Loader {
+        private final Accounts fresh;
+        private final List<User[]> batches = new ArrayList<>();
+        private int count;
+
+        Loader(long expected) {
+            fresh = new Accounts((int) Math.min(Integer.MAX_VALUE, expected));
+        }
+
+        void add(List<User> users) {
+            User[] kept = new User[users.size()];
+            int n = 0;
+            for (User u : users) {
+                if (claimName(fresh, u) == u) kept[n++] = u;
+            }
+            synchronized (this) {
+                batches.add(n == kept.length ? kept : Arrays.copyOf(kept, n));
+                count += n;
+            }
+        }
+
+        synchronized Accounts build() {
+            User[] all = new User[count];
+            int at = 0;
+            for (User[] b : batches) {
+                System.arraycopy(b, 0, all, at, b.length);
+                at += b.length;
             }
+            batches.clear();
+            Arrays.parallelSort(all, (x, y) -> Long.compare(x.id, y.id));
+            UserView.Builder view = UserView.EMPTY.edit();
+            for (User u : all) view.add(u);
+            fresh.view = view.build();
+            Arrays.parallelSort(all, (x, y) -> x.key.compareTo(y.key));
+            for (User u : all) fresh.byKey.put(u.key, u);
+            return fresh;
         }
     }
 
-    // Helpers
-    private static byte[] generateSalt() {
-        SecureRandom rnd = new SecureRandom();
-        byte[] salt = new byte[16];
-        rnd.nextBytes(salt);
-        return salt;
+    // Caller holds the gate paused, so no mutation sees the swap half-way.
+    private static void replaceAll(Accounts fresh) {
+        Accounts old = accounts;
+        accounts = fresh;
+        for (User u : old.view) u.registered = false;
     }
 
-    private static byte[] hash(String rawPassword, byte[] salt) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(salt);
-            md.update(rawPassword.getBytes());
-            return md.digest();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not available", e);
+    /**
+     * Inserts u under its normalized key unless the name is taken, keeping
+     * its id if it already has one. Returns whichever user owns the key.
+     */
+    private static User register(Accounts a, User u) {
+        User owner = claimName(a, u);
+        if (owner == u) {
+            a.publish(u);
+            a.byKey.put(u.key, u);
         }
+        return owner;
+    }
+
+    // register() without the ordered indexes; only for stores no other thread
+    // can see yet (being loaded or replayed), so the three need not change together
+    private static User claimName(Accounts a, User u) {
+        return a.byName.computeIfAbsent(u.key, k -> {
+            if (u.id == 0) u.id = NEXT_ID.incrementAndGet();
+            else NEXT_ID.accumulateAndGet(u.id, Math::max);
+            a.balances.add(u, u.balanceCents);
+            u.registered = true;
+            return u;
+        });
+    }
+
+    private static boolean isRegistered(User u) {
+        return u.registered;
+    }
+
+    private static int stripeIndex(User u) {
+        return (int) (u.id & (STRIPE_COUNT - 1));
+    }
+
+    private static ReentrantLock stripeOf(User u) {
+        return STRIPES[stripeIndex(u)];
+    }
+
+    /** True for a name that is not blank and whose trimmed form fits in MAX_USERNAME_BYTES. */
+    static boolean isValidUsername(String username) {
+        if (username == null) return false;
+        String n = username.trim();
+        if (n.isEmpty()) return false;
+        // a char is at most 3 UTF-8 bytes, so short names need no encoding
+        return n.length() <= MAX_USERNAME_BYTES / 3 || n.getBytes(StandardCharsets.UTF_8).length <= MAX_USERNAME_BYTES;
+    }
+
+    /** Case-folds a username so lookups match the old equalsIgnoreCase semantics. */
+    static String normalize(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    /** Converts a dollar amount to cents, rounding half up. */
+    static long toCents(double amount) {
+        return Math.round(amount * 100.0);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("balance", getBalance());
+        Credential c = credential;
+        fields.put("passwordHashBase64", Base64.getEncoder().encodeToString(c.hash()));
+        fields.put("saltBase64", Base64.getEncoder().encodeToString(c.salt()));
+        fields.put("username", username);
+        fields.put("id", id);
+        fields.put("iterations", c.iterations);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.username = (String) fields.get("username", null);
+        this.credential = new Credential(fields.get("iterations", 0),
+                Base64.getDecoder().decode((String) fields.get("saltBase64", null)),
+                Base64.getDecoder().decode((String) fields.get("passwordHashBase64", null)));
+        this.balanceCents = toCents(fields.get("balance", 0.0));
+        this.id = fields.get("id", 0L);
+        this.key = normalize(username);
+    }
+
+    // Package-private accessors for UserSlotFormat, UserJournal and UserListModel
+
+    static User restore(long id, String username, Credential credential, long balanceCents) {
+        User u = new User(id, username, credential);
+        u.balanceCents = balanceCents;
+        return u;
+    }
+
+    long id() {
+        return id;
+    }
+
+    /** The normalized (case-folded) username the store indexes this account under. */
+    String key() {
+        return key;
+    }
+
+    Credential credential() {
+        return credential;
+    }
+
+    /** False once the account has been removed or its store replaced by a load. */
+    boolean isLive() {
+        return registered;
+    }
+
+    // KDF settings
+
+    /**
+     * Hashes passwords set from now on with PBKDF2WithHmacSHA256 at this many
+     * iterations, or with the original single salted SHA-256 if 0. Existing
+     * accounts keep verifying with whatever cost their hash was made with.
+     */
+    public static void setPbkdf2Iterations(int iterations) {
+        if (iterations < 0) throw new IllegalArgumentException("iterations < 0: " + iterations);
+        kdfIterations = iterations;
+    }
+
+    public static int getPbkdf2Iterations() {
+        return kdfIterations;
+    }
+
+    /**
+     * Writes saveToFile slots and journal checkpoints from now on as
+     * compressed, checksummed blocks (see UserCompressedSlot), or in the
+     * plain binary format if off (the default). Loads read either.
+     */
+    public static void setSlotCompression(boolean on) {
+        slotCompression = on;
+    }
+
+    public static boolean isSlotCompression() {
+        return slotCompression;
+    }
+
+    /**
+     * How many history entries each account keeps (oldest are overwritten);
+     * 0 stops recording. Rings already bigger than a lowered limit keep their size.
+     */
+    public static void setHistoryRetention(int entries) {
+        if (entries < 0) throw new IllegalArgumentException("entries < 0: " + entries);
+        historyRetention = entries;
+    }
+
+    public static int getHistoryRetention() {
+        return historyRetention;
+    }
+
+    // Metrics
+
+    /**
+     * Publishes per-operation latency percentiles and success/failure/
+     * insufficient-funds counts over JMX as bank:type=UserStore,name=Metrics
+     * (see UserMetricsMXBean). Calling it again does nothing.
+     */
+    public static void registerMetricsMBean() {
+        METRICS.register();
+    }
+
+    /**
+     * Prints the same metrics to out every periodMillis, with percentiles
+     * over just that period, until stopMetricsDump(). Replaces any running dump.
+     */
+    public static void startMetricsDump(PrintStream out, long periodMillis) {
+        METRICS.startDump(out, periodMillis);
+    }
+
+    public static void stopMetricsDump() {
+        METRICS.stopDump();
     }
 
     public static void ensureDefaultAdmin() {
-        synchronized (USERS) {
-            if (USERS.isEmpty()) {
-                addUser("admin", "admin123");
-            }
+        if (accounts.byName.isEmpty()) {
+            addUser("admin", "admin123");
         }
     }
 }
@@ -0,0 +1,837 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless micro-benchmark for the static User store.
+ *
+ *  - lookup:   grows the store from 1k to 1M accounts and, at each size, times
+ *              findByUsername against random existing names. With the hash
+ *              index the per-lookup latency should stay flat. Also times an
+ *              8-result usernamesWithPrefix query (a type-ahead keystroke).
+ *  - transfer: each thread moves money back and forth inside its own pair of
+ *              accounts while another thread adds and removes users, at
+ *              1/4/16/64 threads. Disjoint pairs should scale with cores, and
+ *              the total balance must be unchanged afterwards.
+ *  - velocity: the transfer benchmark with no velocity rules, with two rules
+ *              every account stays under (so only the cost of checking
+ *              shows), and with a tight rule that refuses most of them.
+ *  - journal:  deposits from 1/4/16/64 threads with the write-ahead journal
+ *              open under FsyncPolicy.ALWAYS, i.e. every call returns only
+ *              once its record is on disk. Group commit shares the fsyncs.
+ *  - slot:     saves a 1M-account store in the binary slot format and times
+ *              loading it back through loadFromFile, plain and with
+ *              setSlotCompression (blocks deflated and verified on every
+ *              core), then the same as a sharded slot directory (saveToDirectory/loadFromDirectory),
+ *              whose shards are written and read on every core, and how
+ *              many chunk bytes a save after 100 deposits writes.
+ *  - snapshot: 16 threads transfer between 10k accounts while slots are
+ *              saved back to back. Every saved slot must add up to the
+ *              starting total (no half-applied transfers), and transfer
+ *              throughput is reported with and without saves running.
+ *  - batch:    settles batches of 1000 random transfers between 10k accounts,
+ *              once as a transferCents loop and once through transferBatch.
+ *  - auth:     logins against accounts hashed with single-pass SHA-256 and
+ *              with PBKDF2, checked inline on one thread and as bursts
+ *              through authenticateAsync. Reports logins/s and latency
+ *              percentiles; the async burst runs on at most one verifier per core.
+ *  - report:   total, top 10 and median balance over 1M accounts, once by
+ *              copying getUsers() and sorting, once from the running
+ *              aggregates; the two must agree.
+ *
+ *  - ledger:   transfers between 1,000 accounts picked Zipfian (theta 0.99,
+ *              so a handful of accounts take most of them) from 1/4/16/64
+ *              threads: through the striped locks, through the ledger
+ *              (startLedger) blocking per call, and through the ledger with
+ *              up to LEDGER_PIPELINE transferCentsAsync calls in flight per
+ *              thread; then again with the journal open under ALWAYS. The
+ *              total balance must be unchanged.
+ *  - posting:  month-end postToAll (1% interest, and a $5 fee under $100)
+ *              over 2M accounts, once on a quiet store and once while 16
+ *              threads transfer between them. Reports the run time and the
+ *              transfer rate alongside; the total must move by exactly the
+ *              credited minus the charged cents.
+ *
+ *  - server:   a UserServer on loopback driven through UserClient by 1, 100
+ *              and 10k connections (or the count given after "server"), each
+ *              keeping 1 and then 16 pipelined requests in flight: transfers,
+ *              balance queries and logins between 10k accounts. Reports
+ *              requests/s and latency; the total balance must be conserved.
+ *              Both ends run in this process, so 10k connections need 20k+
+ *              file descriptors (ulimit -n).
+ *
+ * Run: java UserBenchmark [lookup|transfer|velocity|journal|slot|snapshot|batch|auth|report|ledger|posting|server [connections]]
+ *      (no argument runs all)
+ */
+public class UserBenchmark {
+    private static final int[] SIZES = {1_000, 10_000, 100_000, 1_000_000};
+    private static final int LOOKUPS = 2_000_000;
+    private static final int[] THREADS = {1, 4, 16, 64};
+    private static final long TRANSFER_MILLIS = 2_000;
+    private static final int PBKDF2_ITERATIONS = 100_000;
+    private static final int[] SERVER_CONNECTIONS = {1, 100, 10_000};
+    private static final int[] PIPELINE_DEPTHS = {1, 16};
+    private static final long SERVER_MILLIS = 5_000;
+    private static final long SERVER_WARMUP_MILLIS = 3_000; // thousands of connections take a while to settle
+    private static final int LEDGER_ACCOUNTS = 1_000;
+    private static final double LEDGER_SKEW = 0.99;
+    private static final int LEDGER_PIPELINE = 64;
+    private static final int POSTING_ACCOUNTS = 2_000_000;
+    private static final int POSTING_THREADS = 16;
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "all";
+        if (mode.equals("all") || mode.equals("lookup")) lookupBenchmark();
+        if (mode.equals("all") || mode.equals("transfer")) transferBenchmark();
+        if (mode.equals("all") || mode.equals("velocity")) velocityBenchmark();
+        if (mode.equals("all") || mode.equals("journal")) journalBenchmark();
+        if (mode.equals("all") || mode.equals("slot")) slotBenchmark();
+        if (mode.equals("all") || mode.equals("snapshot")) snapshotBenchmark();
+        if (mode.equals("all") || mode.equals("batch")) batchBenchmark();
+        if (mode.equals("all") || mode.equals("auth")) authBenchmark();
+        if (mode.equals("all") || mode.equals("report")) reportBenchmark();
+        if (mode.equals("all") || mode.equals("ledger")) ledgerBenchmark();
+        if (mode.equals("all") || mode.equals("posting")) postingBenchmark();
+        if (mode.equals("all") || mode.equals("server")) {
+            serverBenchmark(args.length > 1 ? new int[] {Integer.parseInt(args[1])} : SERVER_CONNECTIONS);
+        }
+    }
+
+    private static void lookupBenchmark() {
+        System.out.println("accounts      ns/lookup   us/prefix");
+        int populated = 0;
+        for (int size : SIZES) {
+            populated = populate(populated, size);
+            double ns = timeLookups(size);
+            double us = timePrefixQueries(size);
+            System.out.printf("%-12d  %8.1f   %8.2f%n", size, ns, us);
+        }
+    }
+
+    private static void transferBenchmark() throws InterruptedException {
+        int maxThreads = THREADS[THREADS.length - 1];
+        for (int i = 0; i < maxThreads * 2; i++) {
+            User.addUser(pairName(i), "pw");
+            User.findByUsername(pairName(i)).get().deposit(1_000);
+        }
+        double expected = totalBalance();
+
+        System.out.println("threads       transfers/s");
+        for (int threads : THREADS) {
+            double perSecond = runTransfers(threads);
+            System.out.printf("%-12d  %,12.0f%n", threads, perSecond);
+        }
+
+        double actual = totalBalance();
+        if (Math.abs(actual - expected) > 1e-6) {
+            throw new IllegalStateException("money was created or destroyed: " + expected + " -> " + actual);
+        }
+        if (User.totalBalanceCents() != Math.round(actual * 100)) {
+            throw new IllegalStateException("running total drifted: " + User.totalBalanceCents() + " vs " + actual);
+        }
+        System.out.println("total balance conserved: " + actual);
+    }
+
+    private static void velocityBenchmark() throws InterruptedException {
+        int maxThreads = THREADS[THREADS.length - 1];
+        for (int i = 0; i < maxThreads * 2; i++) {
+            if (User.addUser(pairName(i), "pw")) User.findByUsername(pairName(i)).get().deposit(1_000);
+        }
+        long expected = User.totalBalanceCents();
+        VelocityRule[] loose = {
+                VelocityRule.debits("debits", Duration.ofMinutes(1), Integer.MAX_VALUE - 1),
+                VelocityRule.cents("cents", Duration.ofDays(1), Long.MAX_VALUE - 1)};
+        VelocityRule tight = VelocityRule.debits("tight", Duration.ofSeconds(1), 1_000);
+
+        System.out.println("threads       no rules/s    2 rules/s    tight/s   refused");
+        for (int threads : THREADS) {
+            User.setVelocityRules();
+            double none = runTransfers(threads);
+            User.setVelocityRules(loose);
+            double checked = runTransfers(threads);
+            User.setVelocityRules(tight);
+            long refusedBefore = User.velocityRejections();
+            double limited = runTransfers(threads);
+            double refused = (User.velocityRejections() - refusedBefore) / (limited * TRANSFER_MILLIS / 1000);
+            System.out.printf("%-12d  %,10.0f  %,11.0f  %,9.0f  %7.1f%%%n", threads, none, checked, limited, refused * 100);
+        }
+        User.setVelocityRules();
+        if (loose[0].getRejections() + loose[1].getRejections() != 0) {
+            throw new IllegalStateException("a rule no account reaches refused transfers");
+        }
+        if (User.totalBalanceCents() != expected) {
+            throw new IllegalStateException("money was created or destroyed: " + expected + " -> " + User.totalBalanceCents());
+        }
+        System.out.println("total balance conserved: " + expected);
+    }
+
+    private static double runTransfers(int threads) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong done = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(threads + 1);
+        for (int t = 0; t < threads; t++) {
+            String a = pairName(2 * t);
+            String b = pairName(2 * t + 1);
+            new Thread(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    User.transfer(a, b, 1);
+                    User.transfer(b, a, 1);
+                    n += 2;
+                }
+                done.addAndGet(n);
+                finished.countDown();
+            }).start();
+        }
+        // membership churn alongside the transfers must neither deadlock nor leak money
+        new Thread(() -> {
+            int i = 0;
+            while (!stop.get()) {
+                String churn = "churn" + (i++ & 63);
+                User.addUser(churn, "pw");
+                User.removeUser(churn);
+            }
+            finished.countDown();
+        }).start();
+
+        Thread.sleep(TRANSFER_MILLIS);
+        stop.set(true);
+        finished.await();
+        return done.get() * 1000.0 / TRANSFER_MILLIS;
+    }
+
+    private static void journalBenchmark() throws Exception {
+        File dir = Files.createTempDirectory("user-journal").toFile();
+        User.openJournal(dir, UserJournal.FsyncPolicy.ALWAYS, 0);
+        try {
+            int maxThreads = THREADS[THREADS.length - 1];
+            for (int i = 0; i < maxThreads; i++) User.addUser(journalName(i), "pw");
+
+            System.out.println("threads       durable deposits/s");
+            for (int threads : THREADS) {
+                double perSecond = runDeposits(threads);
+                System.out.printf("%-12d  %,12.0f%n", threads, perSecond);
+            }
+        } finally {
+            User.closeJournal();
+            deleteTree(dir);
+        }
+    }
+
+    private static double runDeposits(int threads) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong done = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            User account = User.findByUsername(journalName(t)).get();
+            new Thread(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    account.depositCents(1);
+                    n++;
+                }
+                done.addAndGet(n);
+                finished.countDown();
+            }).start();
+        }
+        Thread.sleep(TRANSFER_MILLIS);
+        stop.set(true);
+        finished.await();
+        return done.get() * 1000.0 / TRANSFER_MILLIS;
+    }
+
+    private static void ledgerBenchmark() throws Exception {
+        for (int i = 0; i < LEDGER_ACCOUNTS; i++) {
+            User.addUser(ledgerName(i), "pw");
+            User.findByUsername(ledgerName(i)).get().depositCents(100_000_000);
+        }
+        long expected = User.totalBalanceCents();
+        ZipfianGenerator zipf = new ZipfianGenerator(LEDGER_ACCOUNTS, LEDGER_SKEW);
+        File dir = Files.createTempDirectory("user-ledger").toFile();
+        try {
+            for (boolean durable : new boolean[] {false, true}) {
+                if (durable) User.openJournal(dir, UserJournal.FsyncPolicy.ALWAYS, 0);
+                System.out.println(durable ? "journal ALWAYS" : "in memory");
+                System.out.println("threads       locks/s        ledger/s   ledger async/s");
+                for (int threads : THREADS) {
+                    double locked = runSkewedTransfers(threads, zipf, false);
+                    User.startLedger();
+                    double ledger;
+                    double pipelined;
+                    try {
+                        ledger = runSkewedTransfers(threads, zipf, false);
+                        pipelined = runSkewedTransfers(threads, zipf, true);
+                    } finally {
+                        User.stopLedger();
+                    }
+                    System.out.printf("%-12d  %,10.0f  %,12.0f  %,14.0f%n", threads, locked, ledger, pipelined);
+                }
+                if (durable) User.closeJournal();
+            }
+        } finally {
+            deleteTree(dir);
+        }
+        if (User.totalBalanceCents() != expected) {
+            throw new IllegalStateException("money was created or destroyed: " + expected + " -> " + User.totalBalanceCents());
+        }
+        System.out.println("total balance conserved: " + expected);
+    }
+
+    private static double runSkewedTransfers(int threads, ZipfianGenerator zipf, boolean async) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong done = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom rnd = new SplittableRandom(t);
+            new Thread(() -> {
+                long n = 0;
+                ArrayDeque<CompletableFuture<Boolean>> inFlight = new ArrayDeque<>();
+                while (!stop.get()) {
+                    String from = ledgerName((int) zipf.next(rnd));
+                    String to = ledgerName((int) zipf.next(rnd));
+                    if (!async) {
+                        User.transferCents(from, to, 1);
+                    } else {
+                        if (inFlight.size() == LEDGER_PIPELINE) inFlight.poll().join();
+                        inFlight.add(User.transferCentsAsync(from, to, 1));
+                    }
+                    n++;
+                }
+                for (CompletableFuture<Boolean> f : inFlight) f.join();
+                done.addAndGet(n);
+                finished.countDown();
+            }).start();
+        }
+        Thread.sleep(TRANSFER_MILLIS);
+        stop.set(true);
+        finished.await();
+        return done.get() * 1000.0 / TRANSFER_MILLIS;
+    }
+
+    private static void postingBenchmark() throws InterruptedException {
+        Random rnd = new Random(13);
+        for (int i = 0; i < POSTING_ACCOUNTS; i++) {
+            User.addUser(postingName(i), "pw");
+            User.findByUsername(postingName(i)).get().depositCents((long) (rnd.nextDouble() * rnd.nextDouble() * 1_000_000));
+        }
+        PostingSchedule monthEnd = PostingSchedule.interest(100).plus(PostingSchedule.fee(500, 10_000));
+        for (boolean busy : new boolean[] {false, true}) {
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong transfers = new AtomicLong();
+            CountDownLatch finished = new CountDownLatch(busy ? POSTING_THREADS : 0);
+            for (int t = 0; busy && t < POSTING_THREADS; t++) {
+                SplittableRandom r = new SplittableRandom(t);
+                new Thread(() -> {
+                    long n = 0;
+                    while (!stop.get()) {
+                        User.transferCents(postingName(r.nextInt(POSTING_ACCOUNTS)), postingName(r.nextInt(POSTING_ACCOUNTS)), 1);
+                        n++;
+                    }
+                    transfers.addAndGet(n);
+                    finished.countDown();
+                }).start();
+            }
+            long before = User.totalBalanceCents();
+            PostingSummary summary = User.postToAll(monthEnd);
+            stop.set(true);
+            finished.await();
+            System.out.println((busy ? "with transfers: " : "quiet:          ") + summary);
+            if (busy) {
+                System.out.printf("                %,.0f transfers/s during the run%n",
+                        transfers.get() * 1e9 / summary.getElapsedNanos());
+            }
+            long expected = before + summary.getCreditedCents() - summary.getChargedCents();
+            if (User.totalBalanceCents() != expected) {
+                throw new IllegalStateException("posting total off: " + expected + " expected, " + User.totalBalanceCents() + " found");
+            }
+        }
+        System.out.println("totals moved by exactly the postings");
+    }
+
+    private static void slotBenchmark() throws Exception {
+        int size = SIZES[SIZES.length - 1];
+        populate(0, size);
+        File slot = File.createTempFile("saveslot", ".dat");
+        try {
+            for (boolean compressed : new boolean[] {false, true}) {
+                User.setSlotCompression(compressed);
+                String label = compressed ? "compressed" : "plain";
+                long start = System.nanoTime();
+                User.saveToFile(slot);
+                System.out.printf("%s save %d accounts: %d ms, %,d bytes%n", label,
+                        User.userCount(), (System.nanoTime() - start) / 1_000_000, slot.length());
+                for (int round = 1; round <= 3; round++) {
+                    start = System.nanoTime();
+                    User.loadFromFile(slot);
+                    System.out.printf("%s load #%d: %d ms%n", label, round, (System.nanoTime() - start) / 1_000_000);
+                }
+            }
+        } finally {
+            User.setSlotCompression(false);
+            Files.deleteIfExists(slot.toPath());
+        }
+        File parent = Files.createTempDirectory("saveslots").toFile();
+        File dir = new File(parent, "saveslot1");
+        File chunks = new File(parent, UserShardedSlot.CHUNKS);
+        try {
+            long start = System.nanoTime();
+            User.saveToDirectory(dir);
+            System.out.printf("save %d accounts on %d cores: %d ms, %,d chunk bytes%n", User.userCount(),
+                    Runtime.getRuntime().availableProcessors(), (System.nanoTime() - start) / 1_000_000, directoryBytes(chunks));
+            // a handful of changed accounts: the next save only writes their chunks
+            List<User> users = User.view();
+            Random rnd = new Random(1);
+            for (int i = 0; i < 100; i++) users.get(rnd.nextInt(users.size())).depositCents(1);
+            Set<String> before = new HashSet<>(Arrays.asList(chunks.list()));
+            start = System.nanoTime();
+            User.saveToDirectory(dir);
+            long elapsed = System.nanoTime() - start;
+            long written = 0;
+            for (File f : chunks.listFiles()) if (!before.contains(f.getName())) written += f.length();
+            System.out.printf("save after 100 deposits: %d ms, %,d new chunk bytes%n", elapsed / 1_000_000, written);
+            for (int round = 1; round <= 3; round++) {
+                start = System.nanoTime();
+                User.loadFromDirectory(dir);
+                System.out.printf("load #%d: %d ms%n", round, (System.nanoTime() - start) / 1_000_000);
+            }
+        } finally {
+            User.deleteSlotDirectory(dir);
+            Files.deleteIfExists(parent.toPath());
+        }
+    }
+
+    private static long directoryBytes(File dir) {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) total += f.length();
+        return total;
+    }
+
+    private static void snapshotBenchmark() throws Exception {
+        int accounts = 10_000;
+        int threads = 16;
+        for (int i = 0; i < accounts; i++) {
+            User.addUser(snapshotName(i), "pw");
+            User.findByUsername(snapshotName(i)).get().depositCents(10_000);
+        }
+        long expected = 0;
+        for (User u : User.view()) expected += u.getBalanceCents();
+
+        System.out.printf("transfers/s without saves: %,12.0f%n", runRandomTransfers(threads, accounts, null));
+        File slot = File.createTempFile("saveslot", ".dat");
+        try {
+            long[] saves = new long[1];
+            long want = expected;
+            double perSecond = runRandomTransfers(threads, accounts, () -> {
+                User.saveToFile(slot);
+                long total = 0;
+                for (User u : UserSlotFormat.read(slot, User.SlotProgress.NONE)) total += u.getBalanceCents();
+                if (total != want) throw new IllegalStateException("inconsistent snapshot: " + total + " != " + want);
+                saves[0]++;
+            });
+            System.out.printf("transfers/s while saving:  %,12.0f  (%d consistent saves)%n", perSecond, saves[0]);
+        } finally {
+            Files.deleteIfExists(slot.toPath());
+        }
+    }
+
+    interface Saver {
+        void save() throws Exception;
+    }
+
+    // Random transfers between the snapshot accounts; saver (if any) runs in a loop meanwhile.
+    private static double runRandomTransfers(int threads, int accounts, Saver saver) throws Exception {
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong done = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            new Thread(() -> {
+                Random rnd = new Random(seed);
+                long n = 0;
+                while (!stop.get()) {
+                    User.transferCents(snapshotName(rnd.nextInt(accounts)), snapshotName(rnd.nextInt(accounts)), 1 + rnd.nextInt(100));
+                    n++;
+                }
+                done.addAndGet(n);
+                finished.countDown();
+            }).start();
+        }
+        long end = System.currentTimeMillis() + TRANSFER_MILLIS;
+        try {
+            while (System.currentTimeMillis() < end) {
+                if (saver != null) saver.save();
+                else Thread.sleep(10);
+            }
+        } finally {
+            stop.set(true);
+            finished.await();
+        }
+        return done.get() * 1000.0 / TRANSFER_MILLIS;
+    }
+
+    private static void batchBenchmark() throws Exception {
+        int accounts = 10_000;
+        for (int i = 0; i < accounts; i++) {
+            User.addUser(snapshotName(i), "pw");
+            User.findByUsername(snapshotName(i)).get().depositCents(10_000);
+        }
+        List<List<User.TransferRequest>> work = randomBatches(accounts, 500, 1_000);
+        for (int round = 0; round < 5; round++) runBatches(work, false); // warm-up
+        System.out.println("in memory:");
+        runBatches(work, true);
+
+        // with a durable journal, a loop waits for one group commit per transfer, a batch for one in total
+        File dir = Files.createTempDirectory("user-journal").toFile();
+        User.openJournal(dir, UserJournal.FsyncPolicy.ALWAYS, 0);
+        try {
+            System.out.println("journal, FsyncPolicy.ALWAYS:");
+            runBatches(randomBatches(accounts, 5, 1_000), true);
+        } finally {
+            User.closeJournal();
+            deleteTree(dir);
+        }
+    }
+
+    private static List<List<User.TransferRequest>> randomBatches(int accounts, int batches, int batchSize) {
+        Random rnd = new Random(7);
+        List<List<User.TransferRequest>> work = new ArrayList<>();
+        for (int b = 0; b < batches; b++) {
+            List<User.TransferRequest> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                batch.add(new User.TransferRequest(snapshotName(rnd.nextInt(accounts)),
+                        snapshotName(rnd.nextInt(accounts)), 1 + rnd.nextInt(100)));
+            }
+            work.add(batch);
+        }
+        return work;
+    }
+
+    private static void runBatches(List<List<User.TransferRequest>> work, boolean print) {
+        long transfers = 0;
+        for (List<User.TransferRequest> batch : work) transfers += batch.size();
+
+        long start = System.nanoTime();
+        for (List<User.TransferRequest> batch : work) {
+            for (User.TransferRequest r : batch) User.transferCents(r.getFrom(), r.getTo(), r.getCents());
+        }
+        double loop = transfers * 1e9 / (System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (List<User.TransferRequest> batch : work) User.transferBatch(batch);
+        double batched = transfers * 1e9 / (System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (List<User.TransferRequest> batch : work) User.transferBatch(batch, true);
+        double atomic = transfers * 1e9 / (System.nanoTime() - start);
+
+        if (!print) return;
+        System.out.printf("  transfer loop:                  %,12.0f transfers/s%n", loop);
+        System.out.printf("  transferBatch:                  %,12.0f transfers/s%n", batched);
+        System.out.printf("  transferBatch (all-or-nothing): %,12.0f transfers/s%n", atomic);
+    }
+
+    private static void reportBenchmark() {
+        int accounts = 1_000_000;
+        Random rnd = new Random(11);
+        for (int i = 0; i < accounts; i++) {
+            User.addUser(reportName(i), "pw");
+            User.findByUsername(reportName(i)).get().depositCents(1 + (long) (rnd.nextDouble() * rnd.nextDouble() * 10_000_000));
+        }
+
+        long sortedTotal = 0;
+        List<User> sortedTop = null;
+        long sortedMedian = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < 5; round++) {
+            List<User> all = User.getUsers();
+            all.sort((a, b) -> Long.compare(b.getBalanceCents(), a.getBalanceCents()));
+            sortedTotal = 0;
+            for (User u : all) sortedTotal += u.getBalanceCents();
+            sortedTop = all.subList(0, 10);
+            sortedMedian = all.get((all.size() - 1) / 2).getBalanceCents();
+        }
+        double sortMillis = (System.nanoTime() - start) / 5e6;
+
+        long total = 0;
+        List<User> top = null;
+        long median = 0;
+        int rounds = 100_000;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            total = User.totalBalanceCents();
+            top = User.richest(10);
+            median = User.balancePercentileCents(0.5);
+        }
+        double aggregateMicros = (System.nanoTime() - start) / 1e3 / rounds;
+
+        System.out.printf("copy + sort:  %10.1f ms per report%n", sortMillis);
+        System.out.printf("aggregates:   %10.2f us per report%n", aggregateMicros);
+        if (total != sortedTotal || !top.equals(sortedTop)) {
+            throw new IllegalStateException("aggregates disagree with a full scan");
+        }
+        if (median > sortedMedian || median < sortedMedian - sortedMedian / 16) {
+            throw new IllegalStateException("median " + median + " too far from " + sortedMedian);
+        }
+        System.out.printf("total %,d cents, median %,d (exact %,d)%n", total, median, sortedMedian);
+    }
+
+    private static String reportName(int i) {
+        return "report" + i;
+    }
+
+    private static void serverBenchmark(int[] connectionCounts) throws Exception {
+        int accounts = 10_000;
+        for (int i = 0; i < accounts; i++) {
+            User.addUser(serverName(i), "pw" + i);
+            User.findByUsername(serverName(i)).get().depositCents(100_000);
+        }
+        long expected = User.totalBalanceCents();
+        try (UserServer server = UserServer.start(0)) {
+            System.out.println("connections  in flight      requests/s     p50 us     p99 us");
+            for (int connections : connectionCounts) {
+                List<UserClient> clients = new ArrayList<>(connections);
+                try {
+                    try {
+                        while (clients.size() < connections) clients.add(openClient(server.port()));
+                    } catch (IOException e) {
+                        // usually the descriptor limit: give a few back (class loading needs
+                        // them too) and measure with the rest
+                        for (int i = 0; i < 64 && !clients.isEmpty(); i++) clients.remove(clients.size() - 1).close();
+                        System.out.printf("(using %,d of %,d connections: %s)%n", clients.size(), connections, e);
+                    }
+                    for (int depth : PIPELINE_DEPTHS) runClients(clients, depth, accounts);
+                } finally {
+                    for (UserClient c : clients) c.close();
+                }
+            }
+        }
+        if (User.totalBalanceCents() != expected) {
+            throw new IllegalStateException("money was created or destroyed: " + expected + " -> " + User.totalBalanceCents());
+        }
+    }
+
+    // connected and answered: past the server's descriptor limit, connects still succeed into the accept backlog
+    private static UserClient openClient(int port) throws IOException {
+        UserClient c = UserClient.connect(port);
+        try {
+            c.ping().get(5, TimeUnit.SECONDS);
+            return c;
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            c.close();
+            throw new IOException("Server did not answer a new connection", e);
+        }
+    }
+
+    // one virtual thread per connection keeps depth requests in flight on it
+    private static void runClients(List<UserClient> clients, int depth, int accounts) throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread[] drivers = new Thread[clients.size()];
+        for (int c = 0; c < drivers.length; c++) {
+            UserClient client = clients.get(c);
+            Random rnd = new Random(c);
+            drivers[c] = Thread.ofVirtual().start(() -> {
+                Semaphore window = new Semaphore(depth);
+                while (!stop.get()) {
+                    window.acquireUninterruptibly();
+                    int a = rnd.nextInt(accounts);
+                    long t = System.nanoTime();
+                    int op = rnd.nextInt(10);
+                    CompletableFuture<?> f = op < 4 ? client.transferCents(serverName(a), serverName(rnd.nextInt(accounts)), 1 + rnd.nextInt(100))
+                            : op < 8 ? client.balanceCents(serverName(a))
+                            : client.authenticate(serverName(a), "pw" + a);
+                    f.whenComplete((r, ex) -> {
+                        latency.recordSince(t);
+                        window.release();
+                    });
+                }
+                client.ping().join(); // drain this connection before the next run
+            });
+        }
+        Thread.sleep(SERVER_WARMUP_MILLIS);
+        LatencyHistogram.Snapshot warm = latency.snapshot();
+        long start = System.nanoTime();
+        Thread.sleep(SERVER_MILLIS);
+        LatencyHistogram.Snapshot s = latency.snapshot().minus(warm);
+        long elapsed = System.nanoTime() - start;
+        stop.set(true);
+        for (Thread d : drivers) d.join();
+        System.out.printf("%-12d %9d  %,14.0f  %9.1f  %9.1f%n", clients.size(), depth, s.count() * 1e9 / elapsed,
+                s.percentileNanos(0.50) / 1e3, s.percentileNanos(0.99) / 1e3);
+    }
+
+    private static String serverName(int i) {
+        return "server" + i;
+    }
+
+    private static void authBenchmark() throws Exception {
+        int previous = User.getPbkdf2Iterations();
+        try {
+            System.out.println("SHA-256:");
+            runLogins("sha", 0, 200_000);
+            System.out.println("PBKDF2, " + PBKDF2_ITERATIONS + " iterations:");
+            runLogins("kdf", PBKDF2_ITERATIONS, 200);
+        } finally {
+            User.setPbkdf2Iterations(previous);
+        }
+    }
+
+    private static void runLogins(String prefix, int iterations, int logins) throws Exception {
+        int accounts = 100;
+        User.setPbkdf2Iterations(iterations);
+        User[] users = new User[accounts];
+        for (int i = 0; i < accounts; i++) {
+            User.addUser(prefix + i, "pw" + i);
+            users[i] = User.findByUsername(prefix + i).get();
+        }
+        // every fourth attempt uses the wrong password
+        Random rnd = new Random(3);
+        int[] who = new int[logins];
+        String[] attempts = new String[logins];
+        for (int i = 0; i < logins; i++) {
+            who[i] = rnd.nextInt(accounts);
+            attempts[i] = (i % 4 == 3 ? "bad" : "pw") + who[i];
+        }
+        for (int i = 0; i < Math.min(logins, 2_000); i++) users[who[i]].authenticate(attempts[i]); // warm-up
+
+        long[] latency = new long[logins];
+        int accepted = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            long t = System.nanoTime();
+            if (users[who[i]].authenticate(attempts[i])) accepted++;
+            latency[i] = System.nanoTime() - t;
+        }
+        printLogins("  authenticate:      ", logins, System.nanoTime() - start, latency);
+        if (accepted != logins - logins / 4) throw new IllegalStateException("wrong login outcome: " + accepted);
+
+        // keep the burst under the verifier pool's queue limit
+        Semaphore window = new Semaphore(1_024);
+        CompletableFuture<?>[] pending = new CompletableFuture<?>[logins];
+        long[] async = new long[logins];
+        start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            window.acquire();
+            int n = i;
+            long t = System.nanoTime();
+            pending[i] = users[who[i]].authenticateAsync(attempts[i]).whenComplete((ok, ex) -> {
+                async[n] = System.nanoTime() - t;
+                window.release();
+            });
+        }
+        CompletableFuture.allOf(pending).join();
+        printLogins("  authenticateAsync: ", logins, System.nanoTime() - start, async);
+    }
+
+    private static void printLogins(String label, int logins, long elapsedNanos, long[] latency) {
+        long[] sorted = latency.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s%,10.0f logins/s   p50 %,9.1f us   p99 %,9.1f us%n", label,
+                logins * 1e9 / elapsedNanos,
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3);
+    }
+
+    private static String snapshotName(int i) {
+        return "snap" + i;
+    }
+
+    private static String postingName(int i) {
+        return "posting" + i;
+    }
+
+    private static String ledgerName(int i) {
+        return "ledger" + i;
+    }
+
+    private static String journalName(int i) {
+        return "journal" + i;
+    }
+
+    private static void deleteTree(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteTree(c);
+        }
+        Files.deleteIfExists(f.toPath());
+    }
+
+    private static String pairName(int i) {
+        return "pair" + i;
+    }
+
+    private static double totalBalance() {
+        double total = 0;
+        for (User u : User.view()) total += u.getBalance();
+        return total;
+    }
+
+    static String name(int i) {
+        return "User" + i;
+    }
+
+    // Adds accounts [from, to) and returns the new population.
+    static int populate(int from, int to) {
+        for (int i = from; i < to; i++) {
+            User.addUser(name(i), "pw" + i);
+        }
+        return to;
+    }
+
+    private static double timePrefixQueries(int size) {
+        // "user4", "user45", ... as if typed one key at a time
+        String[] probes = new String[4096];
+        Random rnd = new Random(43);
+        for (int i = 0; i < probes.length; i++) {
+            String full = name(rnd.nextInt(size)).toLowerCase();
+            probes[i] = full.substring(0, Math.min(full.length(), 5 + rnd.nextInt(3)));
+        }
+        int queries = 200_000;
+        long sink = 0;
+        for (int i = 0; i < queries; i++) sink += User.usernamesWithPrefix(probes[i & (probes.length - 1)], 8).size();
+        long start = System.nanoTime();
+        for (int i = 0; i < queries; i++) sink += User.usernamesWithPrefix(probes[i & (probes.length - 1)], 8).size();
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0) throw new IllegalStateException("prefix queries found nothing");
+        return elapsed / 1e3 / queries;
+    }
+
+    private static double timeLookups(int size) {
+        // pre-build the probe names so String concatenation is not measured
+        String[] probes = new String[4096];
+        Random rnd = new Random(42);
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = name(rnd.nextInt(size)).toUpperCase();
+        }
+
+        // warm up, then measure
+        long sink = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += User.findByUsername(probes[i & (probes.length - 1)]).isPresent() ? 1 : 0;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            sink += User.findByUsername(probes[i & (probes.length - 1)]).isPresent() ? 1 : 0;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink != 2L * LOOKUPS) throw new IllegalStateException("lookup missed an account");
+        return (double) elapsed / LOOKUPS;
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client for UserServer. Every call sends its request at once and returns a
+ * future for the response, so one connection can have any number of
+ * requests in flight; the server answers them in order and a reader
+ * (virtual) thread completes the futures in that order. Dependent stages
+ * attached with thenApply etc. run on that reader thread unless an async
+ * variant is used, so they must not block, nor send on the same client: a
+ * send can wait for the server to drain its input, which can be waiting
+ * for the reader.
+ *
+ * Safe to share between threads. Concurrent callers share flushes: a
+ * request is flushed by the last of the callers queued behind the send
+ * lock, as in the journal's group commit, so a burst of sends from many
+ * threads goes out in a few writes.
+ *
+ * If the connection fails or is closed, every pending and later future
+ * completes exceptionally with the IOException.
+ */
+public final class UserClient implements Closeable {
+    private static final int BUFFER_BYTES = 8 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // a request is encoded here first, so an unencodable one (e.g. a string over
+    // 64 KB of UTF-8) fails alone instead of leaving half a frame on the wire
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream(256);
+    private final DataOutputStream frameOut = new DataOutputStream(frame);
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final AtomicInteger waitingSenders = new AtomicInteger();
+    // in send order; appended under sendLock, completed by the reader
+    private final Queue<Pending<?>> pending = new ConcurrentLinkedQueue<>();
+    private IOException failure; // guarded by sendLock
+
+    private UserClient(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+        Thread.ofVirtual().name("user-client-reader").start(this::readLoop);
+    }
+
+    /** Connects to a UserServer on this machine's loopback interface. */
+    public static UserClient connect(int port) throws IOException {
+        return connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public static UserClient connect(InetSocketAddress address) throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(address, CONNECT_TIMEOUT_MILLIS);
+            return new UserClient(s);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    /** Completes with true if the account was created, false if the name is taken or invalid. */
+    public CompletableFuture<Boolean> addUser(String username, String password) {
+        return send(UserServer.ADD_USER, o -> {
+            o.writeUTF(username);
+            o.writeUTF(password);
+        }, UserClient::ok);
+    }
+
+    /** Completes with true if the account exists and the password matches. */
+    public CompletableFuture<Boolean> authenticate(String username, String password) {
+        return send(UserServer.AUTHENTICATE, o -> {
+            o.writeUTF(username);
+            o.writeUTF(password);
+        }, UserClient::ok);
+    }
+
+    public CompletableFuture<Boolean> depositCents(String username, long cents) {
+        return send(UserServer.DEPOSIT, o -> {
+            o.writeUTF(username);
+            o.writeLong(cents);
+        }, UserClient::ok);
+    }
+
+    /** Completes with false if the account does not exist or its balance does not cover cents. */
+    public CompletableFuture<Boolean> withdrawCents(String username, long cents) {
+        return send(UserServer.WITHDRAW, o -> {
+            o.writeUTF(username);
+            o.writeLong(cents);
+        }, UserClient::ok);
+    }
+
+    public CompletableFuture<Boolean> transferCents(String from, String to, long cents) {
+        return send(UserServer.TRANSFER, o -> {
+            o.writeUTF(from);
+            o.writeUTF(to);
+            o.writeLong(cents);
+        }, UserClient::ok);
+    }
+
+    /**
+     * Like transferCents, but safe to send again with the same requestId
+     * after a timeout or a dropped connection: the server moves the money at
+     * most once and answers every copy with the first outcome (see
+     * User.transferOnce).
+     */
+    public CompletableFuture<Boolean> transferOnce(String requestId, String from, String to, long cents) {
+        return send(UserServer.TRANSFER_ONCE, o -> {
+            o.writeUTF(requestId);
+            o.writeUTF(from);
+            o.writeUTF(to);
+            o.writeLong(cents);
+        }, UserClient::ok);
+    }
+
+    /** Completes with the balance in cents, or empty if there is no such account. */
+    public CompletableFuture<OptionalLong> balanceCents(String username) {
+        return send(UserServer.BALANCE, o -> o.writeUTF(username),
+                (status, i) -> status == UserServer.OK ? OptionalLong.of(i.readLong()) : OptionalLong.empty());
+    }
+
+    /** Completes once the server has answered every request sent before it. */
+    public CompletableFuture<Void> ping() {
+        return send(UserServer.PING, o -> { }, (status, i) -> null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close(); // the reader fails whatever is still pending
+    }
+
+    // Sending
+
+    @FunctionalInterface
+    private interface Encoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Decoder<T> {
+        /** Reads the rest of an OK or REFUSED response. */
+        T read(byte status, DataInputStream in) throws IOException;
+    }
+
+    private static final class Pending<T> {
+        final Decoder<T> decoder;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Pending(Decoder<T> decoder) {
+            this.decoder = decoder;
+        }
+
+        void complete(byte status, DataInputStream in) throws IOException {
+            future.complete(decoder.read(status, in));
+        }
+    }
+
+    private static Boolean ok(byte status, DataInputStream in) {
+        return status == UserServer.OK;
+    }
+
+    private <T> CompletableFuture<T> send(byte op, Encoder args, Decoder<T> decoder) {
+        Pending<T> p = new Pending<>(decoder);
+        waitingSenders.incrementAndGet();
+        sendLock.lock();
+        try {
+            waitingSenders.decrementAndGet();
+            if (failure != null) {
+                p.future.completeExceptionally(failure);
+                return p.future;
+            }
+            frame.reset();
+            frameOut.writeByte(op);
+            try {
+                args.write(frameOut);
+            } catch (UTFDataFormatException e) {
+                p.future.completeExceptionally(e);
+                return p.future;
+            }
+            pending.add(p);
+            frame.writeTo(out);
+            // whoever is queued behind us flushes this request along with theirs
+            if (waitingSenders.get() == 0) out.flush();
+        } catch (IOException e) {
+            failLocked(e);
+        } finally {
+            sendLock.unlock();
+        }
+        return p.future;
+    }
+
+    // Receiving
+
+    private void readLoop() {
+        IOException cause;
+        Pending<?> p = null;
+        try {
+            while (true) {
+                int status = in.read();
+                if (status < 0) {
+                    cause = new EOFException("Connection closed by server");
+                    break;
+                }
+                p = pending.poll();
+                if (p == null) {
+                    cause = new IOException("Response without a request");
+                    break;
+                }
+                if (status == UserServer.ERROR) {
+                    p.future.completeExceptionally(new IOException("Server error: " + in.readUTF()));
+                } else {
+                    p.complete((byte) status, in);
+                }
+            }
+        } catch (IOException e) {
+            cause = e;
+            if (p != null) p.future.completeExceptionally(e); // no-op if it was completed
+        }
+        sendLock.lock();
+        try {
+            failLocked(cause);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    // once failed, nothing else is added to pending, so draining it here completes every future
+    private void failLocked(IOException cause) {
+        if (failure == null) failure = cause;
+        for (Pending<?> p; (p = pending.poll()) != null; ) p.future.completeExceptionally(failure);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already failing
+        }
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed encoding of a single-file save slot (UserSlotFormat version
+ * 3), chosen with User.setSlotCompression.
+ *
+ * The records are cut into blocks of about BLOCK_BYTES, each deflated on
+ * its own and checksummed, so blocks are compressed on the slot pool
+ * (UserShardedSlot's, a thread per core) while the cut is still being
+ * walked, and decompressed, verified and decoded there in parallel on
+ * load. A damaged block fails the load with its number and file offset
+ * instead of turning into wrong balances.
+ *
+ * Layout (big-endian):
+ *   header:  int magic "USLT", int version 3, long record count
+ *   block:   int record count, byte codec (STORED or DEFLATE),
+ *            int raw length, int stored length, int CRC32C of the raw bytes,
+ *            stored bytes; raw bytes are records in the version 2 layout
+ *   end:     a block header with every field 0 and nothing after it
+ *
+ * Blocks that deflate would not shrink (mostly salts and hashes) are
+ * stored as they are. Saves keep at most IN_FLIGHT blocks being
+ * compressed and write them out in order, so memory stays bounded however
+ * large the store.
+ */
+final class UserCompressedSlot {
+    static final int VERSION = 3;
+    static final int BLOCK_BYTES = 1 << 20;
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATE = 1;
+    private static final int BLOCK_HEADER_BYTES = 4 + 1 + 4 + 4 + 4;
+    // a block is cut once it reaches BLOCK_BYTES, so it ends at most one record past that
+    private static final int MAX_RAW_BYTES = BLOCK_BYTES + UserSlotFormat.MAX_RECORD_BYTES;
+    private static final int IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors() + 1;
+
+    private UserCompressedSlot() { }
+
+    /** One encoded block, ready to be written. */
+    private static final class Block {
+        final int records;
+        final byte codec;
+        final int rawLength;
+        final int crc;
+        final byte[] stored;
+        final int storedLength;
+
+        Block(int records, byte codec, int rawLength, int crc, byte[] stored, int storedLength) {
+            this.records = records;
+            this.codec = codec;
+            this.rawLength = rawLength;
+            this.crc = crc;
+            this.stored = stored;
+            this.storedLength = storedLength;
+        }
+    }
+
+    /** Writes the accounts to f, compressing blocks in parallel; same contract as UserSlotFormat.write. */
+    static void write(File f, UserSlotFormat.Records records, User.SlotProgress progress) throws IOException {
+        ArrayDeque<Future<Block>> pending = new ArrayDeque<>();
+        long count;
+        try (FileOutputStream file = new FileOutputStream(f);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(UserSlotFormat.MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0); // patched below once the count is known
+            BlockWriter w = new BlockWriter(out, pending, progress, f);
+            try {
+                count = records.forEach(w::add);
+                w.finish();
+            } finally {
+                for (Future<Block> p : pending) p.cancel(false); // only compressing, nothing to undo
+            }
+            out.flush();
+            file.getChannel().position(8);
+            file.getChannel().write(ByteBuffer.allocate(8).putLong(0, count));
+            file.getChannel().force(true);
+        }
+    }
+
+    private static final class BlockWriter {
+        private final DataOutputStream out;
+        private final ArrayDeque<Future<Block>> pending;
+        private final User.SlotProgress progress;
+        private final File f;
+        private ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+        private DataOutputStream rawOut = new DataOutputStream(raw);
+        private int blockRecords;
+        private long records;
+        private long bytes = 16; // header
+
+        BlockWriter(DataOutputStream out, ArrayDeque<Future<Block>> pending, User.SlotProgress progress, File f) {
+            this.out = out;
+            this.pending = pending;
+            this.progress = progress;
+            this.f = f;
+        }
+
+        void add(User u, long cents) throws IOException {
+            UserSlotFormat.writeRecord(rawOut, u, cents);
+            blockRecords++;
+            if (raw.size() >= BLOCK_BYTES) submit();
+            if (++records % UserSlotFormat.PROGRESS_RECORDS == 0) UserSlotFormat.report(progress, records, bytes, f);
+        }
+
+        void finish() throws IOException {
+            if (blockRecords > 0) submit();
+            while (!pending.isEmpty()) writeOldest();
+            out.write(new byte[BLOCK_HEADER_BYTES]); // end of blocks
+            bytes += BLOCK_HEADER_BYTES;
+            UserSlotFormat.report(progress, records, bytes, f);
+        }
+
+        private void submit() throws IOException {
+            if (pending.size() >= IN_FLIGHT) writeOldest();
+            ByteArrayOutputStream full = raw;
+            int n = blockRecords;
+            pending.add(UserShardedSlot.WORKERS.submit(() -> compress(full, n)));
+            raw = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+            rawOut = new DataOutputStream(raw);
+            blockRecords = 0;
+        }
+
+        private void writeOldest() throws IOException {
+            Block b = await(pending.peek());
+            pending.poll();
+            out.writeInt(b.records);
+            out.writeByte(b.codec);
+            out.writeInt(b.rawLength);
+            out.writeInt(b.storedLength);
+            out.writeInt(b.crc);
+            out.write(b.stored, 0, b.storedLength);
+            bytes += BLOCK_HEADER_BYTES + b.storedLength;
+        }
+    }
+
+    private static Block compress(ByteArrayOutputStream raw, int records) {
+        byte[] bytes = raw.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            // anything that does not fit in the raw length is not worth keeping
+            byte[] packed = new byte[bytes.length];
+            int n = 0;
+            while (!deflater.finished() && n < packed.length) n += deflater.deflate(packed, n, packed.length - n);
+            if (deflater.finished() && n < bytes.length) {
+                return new Block(records, DEFLATE, bytes.length, (int) crc.getValue(), packed, n);
+            }
+            return new Block(records, STORED, bytes.length, (int) crc.getValue(), bytes, bytes.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static Block await(Future<Block> f) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IOException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the blocks after the header at b's position: finds them all,
+     * then verifies and decodes them in parallel, returning the accounts in
+     * file order.
+     */
+    static ArrayList<User> read(ByteBuffer b, long count, File f, User.SlotProgress progress) throws IOException {
+        List<int[]> blocks = new ArrayList<>(); // payload offset, record count, codec, raw length, stored length, crc
+        long total = 0;
+        try {
+            while (true) {
+                int at = b.position();
+                int records = b.getInt();
+                byte codec = b.get();
+                int rawLength = b.getInt();
+                int storedLength = b.getInt();
+                int crc = b.getInt();
+                if (records == 0 && codec == 0 && rawLength == 0 && storedLength == 0 && crc == 0) break;
+                // bounded before anything is allocated from them: a damaged header must not ask for gigabytes
+                if (records <= 0 || (codec != STORED && codec != DEFLATE) || rawLength < 0 || rawLength > MAX_RAW_BYTES
+                        || storedLength < 0 || storedLength > rawLength || (codec == STORED && storedLength != rawLength)
+                        || records > rawLength / UserSlotFormat.FIXED_RECORD_BYTES) {
+                    throw new IOException("Corrupt header of block " + blocks.size() + " at byte " + at + " in " + f);
+                }
+                if (storedLength > b.remaining()) {
+                    throw new IOException("Truncated save slot: block " + blocks.size() + " at byte " + at + " in " + f);
+                }
+                blocks.add(new int[] {b.position(), records, codec, rawLength, storedLength, crc});
+                b.position(b.position() + storedLength);
+                total += records;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated save slot: no end of blocks in " + f, e);
+        }
+        if (total != count) throw new IOException(f + " has " + total + " records in its blocks, header says " + count);
+
+        User[][] decoded = new User[blocks.size()][];
+        UserShardedSlot.Progress p = new UserShardedSlot.Progress(progress);
+        List<Callable<Void>> tasks = new ArrayList<>(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) {
+            int index = i;
+            int[] h = blocks.get(i);
+            ByteBuffer stored = b.duplicate().position(h[0]).limit(h[0] + h[4]).slice();
+            User.SlotProgress blockProgress = p.shard();
+            tasks.add(() -> {
+                decoded[index] = decode(stored, h, "block " + index + " at byte " + (h[0] - BLOCK_HEADER_BYTES) + " in " + f);
+                UserSlotFormat.report(blockProgress, h[1], BLOCK_HEADER_BYTES + h[4], f);
+                return null;
+            });
+        }
+        UserShardedSlot.runAll(tasks, p);
+        ArrayList<User> users = new ArrayList<>((int) count);
+        for (User[] block : decoded) users.addAll(Arrays.asList(block));
+        return users;
+    }
+
+    private static User[] decode(ByteBuffer stored, int[] h, String where) throws IOException {
+        int records = h[1];
+        int rawLength = h[3];
+        byte[] raw = new byte[rawLength];
+        if (h[2] == DEFLATE) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(stored);
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int got = inflater.inflate(raw, n, rawLength - n);
+                    if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    n += got;
+                }
+                if (n != rawLength || !inflater.finished()) throw new IOException("Corrupt " + where + ": bad compressed data");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt " + where + ": " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            stored.get(raw);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(raw);
+        if ((int) crc.getValue() != h[5]) throw new IOException("Corrupt " + where + ": checksum mismatch");
+        ByteBuffer rb = ByteBuffer.wrap(raw);
+        User[] users = new User[records];
+        try {
+            for (int i = 0; i < records; i++) users[i] = UserSlotFormat.readRecord(rb, UserSlotFormat.VERSION, where);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt " + where + ": records overrun the block", e);
+        }
+        if (rb.hasRemaining()) throw new IOException("Corrupt " + where + ": bytes left after the records");
+        return users;
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Bulk import of accounts from a CSV or TSV file, for migrating an
+ * existing customer base without one addUser call per account.
+ *
+ * Rows are username, password, opening balance in dollars (e.g. 12.50; may
+ * be left empty for 0). A first row starting with "username" is taken as a
+ * header. CSV fields may be quoted ("a,b" and "say ""hi"""); TSV fields are
+ * split on tabs as they are.
+ *
+ * The file is streamed in batches of BATCH rows, so memory stays constant
+ * however long it is. Each batch drops names already in the store or
+ * earlier in the batch (by index lookup, before any hashing), hashes the
+ * remaining passwords in parallel on the common fork-join pool with the
+ * store's current KDF settings (see User.setPbkdf2Iterations), and then
+ * publishes them all through one User.addUsers call.
+ *
+ * Batches are published as they go: a failure or cancel part-way leaves
+ * the rows before it imported.
+ */
+public final class UserImporter {
+    public static final int BATCH = 8192;
+    private static final int MAX_ERRORS_KEPT = 100;
+
+    private UserImporter() { }
+
+    /** What an import did; malformed rows are skipped with a message each (the first MAX_ERRORS_KEPT). */
+    public static final class Result {
+        private long imported;
+        private long duplicates;
+        private long malformed;
+        private final List<String> errors = new ArrayList<>();
+
+        public long getImported() { return imported; }
+        /** Rows whose username was already taken, in the store or earlier in the file. */
+        public long getDuplicates() { return duplicates; }
+        public long getMalformed() { return malformed; }
+        public List<String> getErrors() { return Collections.unmodifiableList(errors); }
+
+        @Override
+        public String toString() {
+            return String.format("%,d imported, %,d duplicates, %,d malformed", imported, duplicates, malformed);
+        }
+
+        private void reject(long line, String why) {
+            malformed++;
+            if (errors.size() < MAX_ERRORS_KEPT) errors.add("line " + line + ": " + why);
+        }
+    }
+
+    /** Imports f as TSV if its name ends in .tsv, otherwise as CSV (UTF-8 either way). */
+    public static Result importFile(File f, User.SlotProgress progress) throws IOException {
+        char delimiter = f.getName().toLowerCase(Locale.ROOT).endsWith(".tsv") ? '\t' : ',';
+        try (CountingInputStream counted = new CountingInputStream(new FileInputStream(f));
+             BufferedReader in = new BufferedReader(new InputStreamReader(counted, StandardCharsets.UTF_8), 1 << 16)) {
+            return importFrom(in, delimiter, progress, counted);
+        }
+    }
+
+    public static Result importFile(File f) throws IOException {
+        return importFile(f, User.SlotProgress.NONE);
+    }
+
+    /** Imports rows read from in; progress reports rows read (and no bytes). */
+    public static Result importFrom(BufferedReader in, char delimiter, User.SlotProgress progress) throws IOException {
+        return importFrom(in, delimiter, progress, null);
+    }
+
+    private static Result importFrom(BufferedReader in, char delimiter, User.SlotProgress progress,
+                                     CountingInputStream counted) throws IOException {
+        Result result = new Result();
+        Batch batch = new Batch();
+        List<String> fields = new ArrayList<>(3);
+        long lineNo = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            if (line.isBlank()) continue;
+            String why = split(line, delimiter, fields);
+            if (why == null && lineNo == 1 && fields.get(0).trim().equalsIgnoreCase("username")) continue;
+            if (why == null) why = batch.add(fields, result);
+            if (why != null) result.reject(lineNo, why);
+            if (batch.size == BATCH) {
+                batch.publish(result);
+                report(progress, lineNo, counted);
+            }
+        }
+        batch.publish(result);
+        report(progress, lineNo, counted);
+        return result;
+    }
+
+    private static void report(User.SlotProgress progress, long lines, CountingInputStream counted) {
+        progress.update(lines, counted == null ? 0 : counted.count);
+        if (progress.isCancelled()) throw new CancellationException("Import cancelled after line " + lines);
+    }
+
+    /** One batch of rows on their way into the store; the arrays are reused from batch to batch. */
+    private static final class Batch {
+        final String[] names = new String[BATCH];
+        final String[] passwords = new String[BATCH];
+        final long[] cents = new long[BATCH];
+        final Credential[] credentials = new Credential[BATCH];
+        final Set<String> keys = new HashSet<>(BATCH * 2);
+        int size;
+
+        /** Queues a parsed row; returns why it is malformed, or null. */
+        String add(List<String> fields, Result result) {
+            if (fields.size() < 2 || fields.size() > 3) return "expected username, password[, balance]";
+            String name = fields.get(0).trim();
+            String password = fields.get(1);
+            if (name.isEmpty()) return "empty username";
+        if (!User.isValidUsername(name)) return "username longer than " + User.MAX_USERNAME_BYTES + " bytes";
+            if (password.isEmpty()) return "empty password";
+            long opening;
+            try {
+                String balance = fields.size() == 3 ? fields.get(2).trim() : "";
+                opening = balance.isEmpty() ? 0 : new BigDecimal(balance).movePointRight(2).longValueExact();
+            } catch (ArithmeticException | NumberFormatException e) {
+                return "bad balance " + fields.get(2);
+            }
+            if (opening < 0) return "negative balance " + fields.get(2);
+            // duplicates are dropped here, before paying for a hash
+            if (!keys.add(User.normalize(name)) || User.isNameTaken(name)) {
+                result.duplicates++;
+                return null;
+            }
+            names[size] = name;
+            passwords[size] = password;
+            cents[size] = opening;
+            size++;
+            return null;
+        }
+
+        void publish(Result result) {
+            if (size == 0) return;
+            int iterations = User.getPbkdf2Iterations();
+            int n = size;
+            Arrays.parallelSetAll(credentials, i -> i < n ? Credential.create(passwords[i], iterations) : null);
+            boolean[] added = User.addUsers(names, credentials, cents, n);
+            for (boolean a : added) {
+                if (a) result.imported++;
+                else result.duplicates++; // taken by someone else since add() checked
+            }
+            Arrays.fill(names, 0, n, null);
+            Arrays.fill(passwords, 0, n, null);
+            Arrays.fill(credentials, 0, n, null);
+            keys.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Splits line into fields on delimiter, honouring double quotes when the
+     * delimiter is a comma. Returns why the line is malformed, or null.
+     */
+    static String split(String line, char delimiter, List<String> out) {
+        out.clear();
+        if (delimiter != ',') {
+            int start = 0;
+            for (int i = line.indexOf(delimiter); i >= 0; i = line.indexOf(delimiter, start)) {
+                out.add(line.substring(start, i));
+                start = i + 1;
+            }
+            out.add(line.substring(start));
+            return null;
+        }
+        StringBuilder field = new StringBuilder();
+        int i = 0;
+        while (true) {
+            field.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= line.length()) return "unterminated quote";
+                    char c = line.charAt(i++);
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < line.length() && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+                if (i < line.length() && line.charAt(i) != ',') return "text after closing quote";
+            } else {
+                int end = line.indexOf(',', i);
+                if (end < 0) end = line.length();
+                field.append(line, i, end);
+                i = end;
+            }
+            out.add(field.toString());
+            if (i >= line.length()) return null;
+            i++; // the comma
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    /**
+     * Usage: java UserImporter FILE [--pbkdf2=N] [--slot=DIR]
+     * Imports FILE into an empty store (hashing with N rounds of PBKDF2, or
+     * SHA-256 when N is 0) and saves the result as a slot directory.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) throw new IllegalArgumentException("Usage: java UserImporter FILE [--pbkdf2=N] [--slot=DIR]");
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String a = args[i];
+            if (!a.startsWith("--") || !a.contains("=")) throw new IllegalArgumentException("Expected --name=value: " + a);
+            opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+        }
+        User.setPbkdf2Iterations(Integer.parseInt(opts.getOrDefault("pbkdf2", "0")));
+        long start = System.nanoTime();
+        Result r = importFile(new File(args[0]));
+        System.out.printf("%s in %.1f s%n", r, (System.nanoTime() - start) / 1e9);
+        for (String e : r.getErrors()) System.out.println("  " + e);
+        String slot = opts.get("slot");
+        if (slot != null) {
+            User.saveToDirectory(new File(slot));
+            System.out.println("Saved to " + slot);
+        }
+    }
+}
@@ -0,0 +1,467 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead journal for User store mutations.
+ *
+ * Each mutation is encoded as a small binary frame
+ *   [int length][byte type][payload][int crc32c(type + payload)]
+ * into a shared in-memory batch. A single flusher thread writes whole
+ * batches to the current segment through a FileChannel, so concurrent
+ * writers share one write (and one fsync) per group commit.
+ *
+ * The journal directory holds numbered segments (wal-N.log) and the
+ * snapshots that go with them (snapshot-N.dat). Snapshot N contains every
+ * mutation logged before segment N was started, so recovery loads the
+ * newest snapshot and replays segments N, N+1, ... on top of it.
+ *
+ * The log* appenders are called from unchecked store methods, so a failed
+ * write surfaces there as an UncheckedIOException.
+ */
+public final class UserJournal implements Closeable {
+
+    /** When appended records are forced to disk. */
+    public enum FsyncPolicy {
+        /** fsync every group commit; writers wait until their record is durable. */
+        ALWAYS,
+        /** fsync at most once per interval; writers do not wait. */
+        INTERVAL,
+        /** never fsync explicitly, leave it to the OS; writers do not wait. */
+        NEVER
+    }
+
+    /** Receives records during replay, in log order. */
+    interface Handler {
+        void added(long id, String username, Credential credential);
+        void removed(long id);
+        void deposited(long id, long cents);
+        void withdrew(long id, long cents);
+        void transferred(long fromId, long toId, long cents);
+        void passwordChanged(long id, Credential credential);
+    }
+
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+    static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte DEPOSIT = 3;
+    private static final byte WITHDRAW = 4;
+    private static final byte TRANSFER = 5;
+    private static final byte SET_PASSWORD = 6;
+    // ADD / SET_PASSWORD plus the KDF iteration count; the old types replay as SHA-256
+    private static final byte ADD_KDF = 7;
+    private static final byte SET_PASSWORD_KDF = 8;
+
+    private static final int MAX_BATCH_BYTES = 4 << 20; // writers back off above this
+
+    private final File dir;
+    private final FsyncPolicy policy;
+    private final long intervalNanos;
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(64 << 10);
+    private ByteBuffer spare = ByteBuffer.allocate(64 << 10);
+    private final CRC32C crc = new CRC32C();
+    private int frameStart;
+    private long appendedSeq;
+    private long writtenSeq;
+    private long durableSeq;
+    private boolean forceRequested;
+    private boolean closed;
+    private IOException failure;
+
+    // touched by the flusher thread, or by rotate() while holding ioLock
+    private final Object ioLock = new Object();
+    private FileChannel channel;
+    private long generation;
+    private long lastForceNanos;
+
+    private final Thread flusher;
+
+    UserJournal(File dir, long generation, FsyncPolicy policy, long intervalMillis) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        this.intervalNanos = intervalMillis * 1_000_000L;
+        this.generation = generation;
+        this.channel = openSegment(generation);
+        this.lastForceNanos = System.nanoTime();
+        this.flusher = new Thread(this::flushLoop, "user-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    long generation() {
+        synchronized (ioLock) {
+            return generation;
+        }
+    }
+
+    // Record appenders; each returns a ticket for awaitDurable
+
+    long logAdd(long id, String username, Credential c) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length > User.MAX_USERNAME_BYTES) throw new IllegalArgumentException("username longer than " + User.MAX_USERNAME_BYTES + " bytes");
+        synchronized (lock) {
+            ByteBuffer b = begin(ADD_KDF, 8 + 2 + name.length + credentialBytes(c));
+            b.putLong(id);
+            b.putShort((short) name.length).put(name);
+            putCredential(b, c);
+            return finish();
+        }
+    }
+
+    long logRemove(long id) {
+        synchronized (lock) {
+            begin(REMOVE, 8).putLong(id);
+            return finish();
+        }
+    }
+
+    long logDeposit(long id, long cents) {
+        synchronized (lock) {
+            begin(DEPOSIT, 16).putLong(id).putLong(cents);
+            return finish();
+        }
+    }
+
+    long logWithdraw(long id, long cents) {
+        synchronized (lock) {
+            begin(WITHDRAW, 16).putLong(id).putLong(cents);
+            return finish();
+        }
+    }
+
+    long logTransfer(long fromId, long toId, long cents) {
+        synchronized (lock) {
+            begin(TRANSFER, 24).putLong(fromId).putLong(toId).putLong(cents);
+            return finish();
+        }
+    }
+
+    long logPassword(long id, Credential c) {
+        synchronized (lock) {
+            ByteBuffer b = begin(SET_PASSWORD_KDF, 8 + credentialBytes(c));
+            b.putLong(id);
+            putCredential(b, c);
+            return finish();
+        }
+    }
+
+    private static int credentialBytes(Credential c) {
+        return 4 + 2 + c.salt().length + c.hash().length;
+    }
+
+    private static void putCredential(ByteBuffer b, Credential c) {
+        b.putInt(c.iterations);
+        b.put((byte) c.salt().length).put(c.salt());
+        b.put((byte) c.hash().length).put(c.hash());
+    }
+
+    /**
+     * Under FsyncPolicy.ALWAYS, blocks until the record with this ticket
+     * has been forced to disk. Otherwise returns immediately.
+     */
+    void awaitDurable(long ticket) {
+        if (policy != FsyncPolicy.ALWAYS) return;
+        synchronized (lock) {
+            while (durableSeq < ticket && failure == null) {
+                waitOn(lock);
+            }
+            if (failure != null) throw new UncheckedIOException(failure);
+        }
+    }
+
+    /** Writes and forces everything appended so far, whatever the policy. */
+    void flush() throws IOException {
+        synchronized (lock) {
+            long target = appendedSeq;
+            forceRequested = true;
+            lock.notifyAll();
+            while (durableSeq < target && failure == null) {
+                waitOn(lock);
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * Finishes the current segment and starts segment generation + 1.
+     * The caller must make sure no records are appended concurrently
+     * (the store pauses its MutationGate around this).
+     */
+    long rotate() throws IOException {
+        flush();
+        synchronized (ioLock) {
+            channel.close();
+            generation++;
+            channel = openSegment(generation);
+            return generation;
+        }
+    }
+
+    /** Deletes segments and snapshots that snapshot-{keep} makes redundant. */
+    void deleteBefore(long keep) {
+        for (long g : generations(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (g < keep) segmentFile(dir, g).delete();
+        }
+        for (long g : generations(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (g < keep) snapshotFile(dir, g).delete();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (ioLock) {
+            channel.close();
+        }
+    }
+
+    // Encoding helpers, called with lock held
+
+    private ByteBuffer begin(byte type, int payloadLength) {
+        if (closed) throw new UncheckedIOException(new IOException("journal is closed"));
+        if (failure != null) throw new UncheckedIOException(failure);
+        int frame = 4 + 1 + payloadLength + 4;
+        while (pending.position() + frame > MAX_BATCH_BYTES && pending.position() > 0 && failure == null) {
+            lock.notifyAll();
+            waitOn(lock);
+        }
+        if (failure != null) throw new UncheckedIOException(failure);
+        if (pending.remaining() < frame) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + frame));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        frameStart = pending.position();
+        pending.putInt(1 + payloadLength);
+        pending.put(type);
+        return pending;
+    }
+
+    private long finish() {
+        int start = frameStart + 4;
+        int length = pending.position() - start;
+        crc.reset();
+        crc.update(pending.array(), start, length);
+        pending.putInt((int) crc.getValue());
+        lock.notifyAll();
+        return ++appendedSeq;
+    }
+
+    // Flusher
+
+    private void flushLoop() {
+        for (;;) {
+            ByteBuffer batch;
+            long batchSeq;
+            boolean force;
+            synchronized (lock) {
+                while (pending.position() == 0 && !forceRequested && !closed) {
+                    if (policy == FsyncPolicy.INTERVAL && durableSeq < writtenSeq) {
+                        // nothing new to write, but the last batch still needs its timed fsync
+                        long waitMillis = (lastForceNanos + intervalNanos - System.nanoTime()) / 1_000_000L;
+                        if (waitMillis <= 0) {
+                            forceRequested = true;
+                            break;
+                        }
+                        waitOn(lock, waitMillis);
+                    } else {
+                        waitOn(lock, 0);
+                    }
+                }
+                if (pending.position() == 0 && !forceRequested && closed) return;
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                batchSeq = appendedSeq;
+                force = forceRequested;
+                forceRequested = false;
+                lock.notifyAll(); // writers backing off in begin() can continue
+            }
+            try {
+                boolean forced = false;
+                synchronized (ioLock) {
+                    batch.flip();
+                    while (batch.hasRemaining()) channel.write(batch);
+                    long now = System.nanoTime();
+                    if (force || policy == FsyncPolicy.ALWAYS
+                            || (policy == FsyncPolicy.INTERVAL && now - lastForceNanos >= intervalNanos)) {
+                        channel.force(false);
+                        lastForceNanos = now;
+                        forced = true;
+                    }
+                }
+                batch.clear();
+                synchronized (lock) {
+                    writtenSeq = batchSeq;
+                    if (forced) durableSeq = batchSeq;
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private static void waitOn(Object monitor) {
+        waitOn(monitor, 0);
+    }
+
+    private static void waitOn(Object monitor, long millis) {
+        try {
+            monitor.wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private FileChannel openSegment(long gen) throws IOException {
+        dir.mkdirs();
+        return FileChannel.open(segmentFile(dir, gen).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Recovery
+
+    /**
+     * Replays one segment into handler, stopping at the first torn or
+     * corrupt frame (an interrupted write at the tail), which is cut off.
+     */
+    static void replay(File segment, Handler handler) throws IOException {
+        try (FileChannel ch = FileChannel.open(segment.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate((int) ch.size());
+            while (b.hasRemaining() && ch.read(b) >= 0) { }
+            b.flip();
+            CRC32C crc = new CRC32C();
+            int good = 0;
+            while (b.remaining() >= 4) {
+                int start = b.position();
+                int length = b.getInt();
+                if (length <= 0 || b.remaining() < length + 4) break;
+                crc.reset();
+                crc.update(b.array(), b.position(), length);
+                int stored = b.getInt(b.position() + length);
+                if (stored != (int) crc.getValue()) break;
+                ByteBuffer rec = b.slice(b.position(), length);
+                b.position(b.position() + length + 4);
+                dispatch(rec, handler);
+                good = b.position();
+                if (good == start) break;
+            }
+            if (good < ch.size()) ch.truncate(good);
+        }
+    }
+
+    private static void dispatch(ByteBuffer r, Handler h) throws IOException {
+        byte type = r.get();
+        switch (type) {
+            case ADD:
+            case ADD_KDF: {
+                long id = r.getLong();
+                byte[] name = new byte[r.getShort() & 0xFFFF];
+                r.get(name);
+                h.added(id, new String(name, StandardCharsets.UTF_8), getCredential(r, type == ADD_KDF));
+                break;
+            }
+            case REMOVE:
+                h.removed(r.getLong());
+                break;
+            case DEPOSIT:
+                h.deposited(r.getLong(), r.getLong());
+                break;
+            case WITHDRAW:
+                h.withdrew(r.getLong(), r.getLong());
+                break;
+            case TRANSFER:
+                h.transferred(r.getLong(), r.getLong(), r.getLong());
+                break;
+            case SET_PASSWORD:
+            case SET_PASSWORD_KDF: {
+                long id = r.getLong();
+                h.passwordChanged(id, getCredential(r, type == SET_PASSWORD_KDF));
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static Credential getCredential(ByteBuffer r, boolean hasIterations) throws IOException {
+        int iterations = hasIterations ? r.getInt() : 0;
+        if (iterations < 0) throw new IOException("Corrupt KDF iterations " + iterations);
+        byte[] salt = new byte[r.get() & 0xFF];
+        r.get(salt);
+        byte[] hash = new byte[r.get() & 0xFF];
+        r.get(hash);
+        return new Credential(iterations, salt, hash);
+    }
+
+    static File snapshotFile(File dir, long gen) {
+        return new File(dir, String.format("%s%06d%s", SNAPSHOT_PREFIX, gen, SNAPSHOT_SUFFIX));
+    }
+
+    static File segmentFile(File dir, long gen) {
+        return new File(dir, String.format("%s%06d%s", SEGMENT_PREFIX, gen, SEGMENT_SUFFIX));
+    }
+
+    /** Generation of the newest snapshot in dir, or -1 if there is none. */
+    static long latestSnapshot(File dir) {
+        List<Long> gens = generations(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        return gens.isEmpty() ? -1 : gens.get(gens.size() - 1);
+    }
+
+    /** Segment generations in dir that are >= from, ascending. */
+    static List<Long> segmentsFrom(File dir, long from) {
+        List<Long> out = new ArrayList<>();
+        for (long g : generations(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (g >= from) out.add(g);
+        }
+        return out;
+    }
+
+    static long latestGeneration(File dir) {
+        long max = latestSnapshot(dir);
+        for (long g : generations(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX)) max = Math.max(max, g);
+        return max;
+    }
+
+    private static List<Long> generations(File dir, String prefix, String suffix) {
+        List<Long> out = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return out;
+        for (String n : names) {
+            if (!n.startsWith(prefix) || !n.endsWith(suffix)) continue;
+            try {
+                out.add(Long.parseLong(n.substring(prefix.length(), n.length() - suffix.length())));
+            } catch (NumberFormatException ignored) {
+                // not one of ours
+            }
+        }
+        Collections.sort(out);
+        return out;
+    }
+}
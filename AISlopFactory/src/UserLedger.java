@@ -0,0 +1,233 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-writer engine for balance changes (User.startLedger): callers
+ * publish deposits, withdrawals and transfers into a pre-allocated ring of
+ * slots, and one ledger thread applies them in sequence order.
+ *
+ * The ring works like the LMAX Disruptor's multi-producer sequencer. A
+ * producer claims the next sequence with one atomic increment, waits until
+ * the ledger has consumed the slot's previous lap, fills the slot in place
+ * and publishes it by writing the sequence into the slot's entry of the
+ * availability array. The ledger reads forward from its cursor for as long
+ * as sequences are available, up to MAX_BATCH, so producers never wait on
+ * each other or on an account, only (rarely) on a full ring.
+ *
+ * The ledger applies a batch under one MutationGate entry, awaits the
+ * journal once for the whole batch, then completes the producers' futures
+ * and fires listeners in sequence order before freeing the batch's slots.
+ * The sequence is a total order of every balance change made through the
+ * ledger, and it is the order of their journal records.
+ *
+ * Futures complete on the ledger thread, so dependent stages must be quick
+ * and must not wait for another ledger operation.
+ */
+final class UserLedger {
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAW = 2;
+    static final byte TRANSFER = 3;
+
+    static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int MAX_BATCH = 1 << 10;
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** How the ledger applies its events to the store; implemented by User. */
+    interface Handler {
+        /** Entered before a batch is applied and exited after it (the store's MutationGate). */
+        void enterBatch();
+        void exitBatch();
+
+        /** Applies one event; sets ticket[0] to its journal ticket if it was logged. */
+        UserMetrics.Outcome apply(byte kind, User a, User b, long cents, long[] ticket);
+
+        void awaitDurable(long ticket);
+
+        /** Tells listeners about an event that succeeded. */
+        void applied(byte kind, User a, User b);
+    }
+
+    /** One event, reused every lap of the ring. */
+    private static final class Slot {
+        byte kind;
+        User a;
+        User b;
+        long cents;
+        CompletableFuture<UserMetrics.Outcome> done;
+        UserMetrics.Outcome outcome;
+        RuntimeException failure;
+        long ticket;
+    }
+
+    private final Handler handler;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLongArray available; // sequence last published in each slot
+    private final AtomicLong claimed = new AtomicLong(); // next sequence to hand out
+    private volatile long consumed = -1; // last sequence whose slot may be reused
+    private final AtomicInteger submitters = new AtomicInteger();
+    private volatile boolean closing;
+    private volatile boolean idle;
+    private final Thread thread;
+
+    UserLedger(Handler handler, int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.handler = handler;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new Slot();
+        this.mask = capacity - 1;
+        this.available = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) available.set(i, -1);
+        this.thread = new Thread(this::run, "user-ledger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** True on the ledger thread itself, which must apply directly rather than wait on itself. */
+    boolean isLedgerThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Events published so far. */
+    long sequence() {
+        return claimed.get();
+    }
+
+    /**
+     * Publishes an event and returns the future of its outcome, or null if
+     * the ledger is stopping (the caller then applies it directly).
+     */
+    CompletableFuture<UserMetrics.Outcome> submit(byte kind, User a, User b, long cents) {
+        submitters.incrementAndGet();
+        try {
+            if (closing) return null;
+            long seq = claimed.getAndIncrement();
+            awaitSlot(seq);
+            Slot s = slots[(int) seq & mask];
+            CompletableFuture<UserMetrics.Outcome> done = new CompletableFuture<>();
+            s.kind = kind;
+            s.a = a;
+            s.b = b;
+            s.cents = cents;
+            s.done = done;
+            available.set((int) seq & mask, seq); // publishes the fields above
+            if (idle) LockSupport.unpark(thread);
+            return done;
+        } finally {
+            submitters.decrementAndGet();
+        }
+    }
+
+    // the slot is free once the ledger has consumed the sequence one lap before
+    private void awaitSlot(long seq) {
+        long lap = seq - slots.length;
+        for (int i = 0; lap > consumed; i++) {
+            if (i < SPINS) Thread.onSpinWait();
+            else if (i < SPINS + YIELDS) Thread.yield();
+            else LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+    }
+
+    /** Applies everything already published, then stops the ledger thread. */
+    void stop() {
+        closing = true;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void run() {
+        long next = 0;
+        long[] ticket = new long[1];
+        while (true) {
+            long end = next;
+            while (end - next < MAX_BATCH && available.get((int) end & mask) == end) end++;
+            if (end == next) {
+                // nothing in flight can still publish once every submitter has left after closing
+                if (closing && submitters.get() == 0 && claimed.get() == next) return;
+                waitFor(next);
+                continue;
+            }
+            long lastTicket = 0;
+            handler.enterBatch();
+            try {
+                for (long seq = next; seq < end; seq++) {
+                    Slot s = slots[(int) seq & mask];
+                    ticket[0] = 0;
+                    try {
+                        s.outcome = handler.apply(s.kind, s.a, s.b, s.cents, ticket);
+                        s.ticket = ticket[0];
+                        lastTicket = Math.max(lastTicket, ticket[0]);
+                    } catch (RuntimeException e) {
+                        s.failure = e;
+                    }
+                }
+            } finally {
+                handler.exitBatch();
+            }
+            RuntimeException notDurable = null;
+            try {
+                handler.awaitDurable(lastTicket); // tickets are in log order, so the last covers the batch
+            } catch (RuntimeException e) {
+                notDurable = e;
+            }
+            for (long seq = next; seq < end; seq++) finish(slots[(int) seq & mask], notDurable);
+            consumed = end - 1;
+            next = end;
+        }
+    }
+
+    private void finish(Slot s, RuntimeException notDurable) {
+        CompletableFuture<UserMetrics.Outcome> done = s.done;
+        UserMetrics.Outcome outcome = s.outcome;
+        RuntimeException failure = s.failure != null ? s.failure : s.ticket != 0 ? notDurable : null;
+        byte kind = s.kind;
+        User a = s.a;
+        User b = s.b;
+        s.a = s.b = null;
+        s.done = null;
+        s.outcome = null;
+        s.failure = null;
+        s.ticket = 0;
+        if (failure != null) {
+            done.completeExceptionally(failure);
+            return;
+        }
+        if (outcome == UserMetrics.Outcome.SUCCESS) {
+            try {
+                handler.applied(kind, a, b);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e); // applied, as when a direct call's listener throws
+                return;
+            }
+        }
+        done.complete(outcome);
+    }
+
+    private void waitFor(long seq) {
+        for (int i = 0; i < SPINS; i++) {
+            if (available.get((int) seq & mask) == seq || closing) return;
+            Thread.onSpinWait();
+        }
+        // a producer that publishes after we set idle sees it and unparks us
+        idle = true;
+        if (available.get((int) seq & mask) != seq && !closing) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        idle = false;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+
+/**
+ * ListModel over the live User store, kept up to date from store events
+ * instead of being rebuilt after every action.
+ *
+ * Rows are the User objects themselves in id (creation) order, so nothing
+ * is formatted until the JList renders a visible row, and a balance change
+ * repaints just that row. They are held as a UserView: a reload just takes
+ * the store's current version, and each add or remove event derives the
+ * next version from the shown one without copying the rest. Events arrive on whatever thread mutated the
+ * store; they are queued and applied on the EDT in one batch per
+ * invokeLater, however many arrive in between. Applying them is
+ * idempotent, so a full reload racing with later events does no harm.
+ *
+ * Only use the model from the EDT; call dispose() to stop listening.
+ */
+@SuppressWarnings("serial") // Swing models are never serialized here
+final class UserListModel extends AbstractListModel<User> implements User.StoreListener {
+    private UserView rows = UserView.EMPTY;
+
+    // filled by any thread, drained on the EDT
+    private final Queue<User> membership = new ConcurrentLinkedQueue<>(); // added or removed, in event order
+    private final Set<User> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    UserListModel() {
+        User.addStoreListener(this);
+        reload();
+    }
+
+    void dispose() {
+        User.removeStoreListener(this);
+    }
+
+    /** Re-reads the whole store. EDT only. */
+    void reload() {
+        int old = rows.size();
+        rows = UserView.EMPTY;
+        if (old > 0) fireIntervalRemoved(this, 0, old - 1);
+        rows = User.view();
+        if (!rows.isEmpty()) fireIntervalAdded(this, 0, rows.size() - 1);
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public User getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    // StoreListener, called on the mutating thread
+
+    @Override
+    public void userAdded(User u) {
+        membership.add(u);
+        scheduleDrain();
+    }
+
+    @Override
+    public void userRemoved(User u) {
+        membership.add(u);
+        scheduleDrain();
+    }
+
+    @Override
+    public void balanceChanged(User u) {
+        if (dirty.add(u)) scheduleDrain();
+    }
+
+    @Override
+    public void storeReplaced() {
+        reloadPending.set(true);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        if (reloadPending.getAndSet(false)) reload();
+        // whether a user belongs in the list is read from the store, so add and
+        // remove events for the same user can be applied in any number
+        // (events from before a load can name a stale account that shares an id with a row)
+        for (User u; (u = membership.poll()) != null; ) {
+            User row = rows.find(u.id());
+            int i = rows.rank(u);
+            if (u.isLive() && row == null) {
+                rows = rows.with(u);
+                fireIntervalAdded(this, -i - 1, -i - 1);
+            } else if (!u.isLive() && row == u) {
+                rows = rows.without(u);
+                fireIntervalRemoved(this, i, i);
+            }
+        }
+        for (User u : dirty) {
+            dirty.remove(u);
+            int i = rows.rank(u);
+            if (i >= 0) fireContentsChanged(this, i, i);
+        }
+    }
+}
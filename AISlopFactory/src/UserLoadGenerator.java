@@ -0,0 +1,230 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for the static User store: no Swing, no BankingApp.
+ *
+ * Populates the store, then drives a weighted mix of store operations from
+ * a number of threads for a fixed time, picking accounts uniformly or with
+ * Zipfian skew (a few hot accounts take most of the traffic). Reports
+ * throughput and latency percentiles per operation, plus addUser latency
+ * from the populate phase and slot save/load times, as one file and as a
+ * sharded slot directory.
+ *
+ * Options (all --name=value, all optional):
+ *   --accounts=100000     accounts created up front
+ *   --threads=4           worker threads
+ *   --seconds=10          measured run length, after --warmup=2 seconds
+ *   --skew=zipf:0.99      uniform, or zipf:theta with theta in (0, 1)
+ *   --mix=transfer:40,deposit:15,withdraw:15,lookup:20,auth:10
+ *                         relative weights of transfer, deposit, withdraw,
+ *                         lookup (findByUsername), auth (authenticate), add (addUser)
+ *   --pbkdf2=0            PBKDF2 iterations for account passwords (0 = SHA-256)
+ *   --journal=DIR         open a write-ahead journal in DIR first, with --fsync=ALWAYS
+ *   --slot-rounds=3       save/load round trips timed at the end (0 skips them)
+ *
+ * Example: java UserLoadGenerator --accounts=1000000 --threads=16 --skew=uniform
+ */
+public class UserLoadGenerator {
+    private enum Op { TRANSFER, DEPOSIT, WITHDRAW, LOOKUP, AUTH, ADD }
+
+    private static final long START_CENTS = 100_000;
+    private static final int MAX_AMOUNT_CENTS = 100;
+
+    private final int accounts;
+    private final int threads;
+    private final int seconds;
+    private final int warmupSeconds;
+    private final ZipfianGenerator zipf; // null for uniform
+    private final Op[] ops;              // op per slot of the weighted mix
+    private final String[] names;
+    private final User[] users;
+
+    private UserLoadGenerator(Map<String, String> opts) {
+        accounts = Integer.parseInt(opts.getOrDefault("accounts", "100000"));
+        threads = Integer.parseInt(opts.getOrDefault("threads", "4"));
+        seconds = Integer.parseInt(opts.getOrDefault("seconds", "10"));
+        warmupSeconds = Integer.parseInt(opts.getOrDefault("warmup", "2"));
+        String skew = opts.getOrDefault("skew", "zipf:0.99");
+        if (skew.equals("uniform")) {
+            zipf = null;
+        } else if (skew.startsWith("zipf")) {
+            zipf = new ZipfianGenerator(accounts, skew.contains(":") ? Double.parseDouble(skew.substring(5)) : 0.99);
+        } else {
+            throw new IllegalArgumentException("--skew must be uniform or zipf[:theta]: " + skew);
+        }
+        ops = parseMix(opts.getOrDefault("mix", "transfer:40,deposit:15,withdraw:15,lookup:20,auth:10"));
+        names = new String[accounts];
+        users = new User[accounts];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--") || !a.contains("=")) throw new IllegalArgumentException("Expected --name=value: " + a);
+            opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+        }
+        User.setPbkdf2Iterations(Integer.parseInt(opts.getOrDefault("pbkdf2", "0")));
+        String journal = opts.get("journal");
+        if (journal != null) {
+            User.openJournal(new File(journal), UserJournal.FsyncPolicy.valueOf(opts.getOrDefault("fsync", "ALWAYS")), 100);
+        }
+        try {
+            UserLoadGenerator gen = new UserLoadGenerator(opts);
+            System.out.printf("accounts=%d threads=%d seconds=%d skew=%s%n", gen.accounts, gen.threads, gen.seconds,
+                    gen.zipf == null ? "uniform" : "zipf:" + gen.zipf.theta());
+            gen.populate();
+            gen.run(gen.warmupSeconds, false);
+            gen.run(gen.seconds, true);
+            gen.saveAndLoad(Integer.parseInt(opts.getOrDefault("slot-rounds", "3")));
+        } finally {
+            if (journal != null) User.closeJournal();
+        }
+    }
+
+    private static Op[] parseMix(String mix) {
+        List<Op> slots = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":");
+            Op op = Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+            int weight = Integer.parseInt(kv[1].trim());
+            for (int i = 0; i < weight; i++) slots.add(op);
+        }
+        if (slots.isEmpty()) throw new IllegalArgumentException("--mix has no weight: " + mix);
+        return slots.toArray(new Op[0]);
+    }
+
+    private void populate() {
+        LatencyHistogram adds = new LatencyHistogram();
+        long start = System.nanoTime();
+        for (int i = 0; i < accounts; i++) {
+            names[i] = "load" + i;
+            long t = System.nanoTime();
+            User.addUser(names[i], "pw" + i);
+            adds.recordSince(t);
+            users[i] = User.findByUsername(names[i]).orElseThrow();
+            users[i].depositCents(START_CENTS);
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("populate: %,d accounts in %.1f s%n", accounts, secs);
+        printHeader();
+        printRow("addUser", adds.snapshot(), 0, secs);
+    }
+
+    private void run(int runSeconds, boolean report) throws InterruptedException {
+        Op[] all = Op.values();
+        LatencyHistogram[] latency = new LatencyHistogram[all.length];
+        LongAdder[] failed = new LongAdder[all.length];
+        for (int i = 0; i < all.length; i++) {
+            latency[i] = new LatencyHistogram();
+            failed[i] = new LongAdder();
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            long seed = 31L * t + (report ? 1 : 0);
+            int worker = t;
+            new Thread(() -> {
+                SplittableRandom rnd = new SplittableRandom(seed);
+                long added = 0;
+                while (!stop.get()) {
+                    Op op = ops[rnd.nextInt(ops.length)];
+                    long start = System.nanoTime();
+                    boolean ok = apply(op, rnd, worker, report, added);
+                    latency[op.ordinal()].recordSince(start);
+                    if (op == Op.ADD) added++;
+                    if (!ok) failed[op.ordinal()].increment();
+                }
+                done.countDown();
+            }, "load-" + t).start();
+        }
+        long start = System.nanoTime();
+        Thread.sleep(runSeconds * 1000L);
+        stop.set(true);
+        done.await();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (!report) return;
+        for (Op op : all) {
+            LatencyHistogram.Snapshot s = latency[op.ordinal()].snapshot();
+            if (s.count() > 0) printRow(op.name().toLowerCase(Locale.ROOT), s, failed[op.ordinal()].sum(), secs);
+        }
+    }
+
+    private boolean apply(Op op, SplittableRandom rnd, int worker, boolean measured, long added) {
+        switch (op) {
+            case TRANSFER:
+                return User.transferCents(names[pick(rnd)], names[pick(rnd)], 1 + rnd.nextInt(MAX_AMOUNT_CENTS));
+            case DEPOSIT:
+                return users[pick(rnd)].depositCents(1 + rnd.nextInt(MAX_AMOUNT_CENTS));
+            case WITHDRAW:
+                return users[pick(rnd)].withdrawCents(1 + rnd.nextInt(MAX_AMOUNT_CENTS));
+            case LOOKUP:
+                return User.findByUsername(names[pick(rnd)]).isPresent();
+            case AUTH: {
+                int i = pick(rnd);
+                return users[i].authenticate("pw" + i);
+            }
+            case ADD:
+                return User.addUser("load-" + (measured ? "m" : "w") + worker + "-" + added, "pw");
+            default:
+                throw new AssertionError(op);
+        }
+    }
+
+    private int pick(SplittableRandom rnd) {
+        return zipf == null ? rnd.nextInt(accounts) : (int) zipf.next(rnd);
+    }
+
+    private void saveAndLoad(int rounds) throws Exception {
+        if (rounds <= 0) return;
+        File slot = Files.createTempFile("user-load", ".dat").toFile();
+        File parent = Files.createTempDirectory("user-load").toFile();
+        File dir = new File(parent, "slot"); // chunks go to parent/chunks
+        try {
+            LatencyHistogram saves = new LatencyHistogram();
+            LatencyHistogram loads = new LatencyHistogram();
+            LatencyHistogram dirSaves = new LatencyHistogram();
+            LatencyHistogram dirLoads = new LatencyHistogram();
+            for (int i = 0; i < rounds; i++) {
+                long t = System.nanoTime();
+                User.saveToFile(slot);
+                saves.recordSince(t);
+                t = System.nanoTime();
+                User.loadFromFile(slot);
+                loads.recordSince(t);
+                t = System.nanoTime();
+                User.saveToDirectory(dir);
+                dirSaves.recordSince(t);
+                t = System.nanoTime();
+                User.loadFromDirectory(dir);
+                dirLoads.recordSince(t);
+            }
+            System.out.printf("%nslot: %,d bytes, %d rounds%n", slot.length(), rounds);
+            printHeader();
+            printRow("saveToFile", saves.snapshot(), 0, 0);
+            printRow("loadFromFile", loads.snapshot(), 0, 0);
+            printRow("saveToDir", dirSaves.snapshot(), 0, 0);
+            printRow("loadFromDir", dirLoads.snapshot(), 0, 0);
+        } finally {
+            Files.deleteIfExists(slot.toPath());
+            User.deleteSlotDirectory(dir);
+            Files.deleteIfExists(parent.toPath());
+        }
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-13s %12s %10s %10s %10s %10s %10s %10s%n",
+                "op", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "failed");
+    }
+
+    private static void printRow(String name, LatencyHistogram.Snapshot s, long failed, double secs) {
+        System.out.printf("%-13s %12s %10.1f %10.1f %10.1f %10.1f %10.1f %10d%n", name,
+                secs > 0 ? String.format("%,.0f", s.count() / secs) : "-",
+                s.percentileNanos(0.50) / 1e3, s.percentileNanos(0.90) / 1e3, s.percentileNanos(0.99) / 1e3,
+                s.percentileNanos(0.999) / 1e3, s.maxNanos() / 1e3, failed);
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and outcome counters for the User store's public
+ * operations. User times each call with System.nanoTime() and hands the
+ * start time and outcome to record(), which is a histogram increment plus a
+ * LongAdder increment: lock-free, and it allocates nothing (both are
+ * indexed by enum ordinal into arrays built up front).
+ *
+ * Readable through JMX (UserMetricsMXBean) and as a periodic text dump.
+ */
+final class UserMetrics implements UserMetricsMXBean {
+    static final String OBJECT_NAME = "bank:type=UserStore,name=Metrics";
+
+    enum Op { ADD_USER, FIND_BY_USERNAME, TRANSFER, DEPOSIT, WITHDRAW, AUTHENTICATE, SAVE_TO_FILE, LOAD_FROM_FILE }
+
+    enum Outcome { SUCCESS, FAILURE, INSUFFICIENT_FUNDS, VELOCITY_LIMIT }
+
+    private static final Op[] OPS = Op.values();
+    private static final int OUTCOMES = Outcome.values().length;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+    private final LongAdder[] outcomes = new LongAdder[OPS.length * OUTCOMES];
+
+    private ScheduledExecutorService dumper;
+    private ScheduledFuture<?> dump;
+
+    UserMetrics() {
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+        for (int i = 0; i < outcomes.length; i++) outcomes[i] = new LongAdder();
+    }
+
+    /** Records one call of op that started at startNanos (System.nanoTime()). */
+    void record(Op op, long startNanos, Outcome outcome) {
+        latency[op.ordinal()].recordSince(startNanos);
+        outcomes[op.ordinal() * OUTCOMES + outcome.ordinal()].increment();
+    }
+
+    void record(Op op, long startNanos, boolean ok) {
+        record(op, startNanos, ok ? Outcome.SUCCESS : Outcome.FAILURE);
+    }
+
+    long count(Op op, Outcome outcome) {
+        return outcomes[op.ordinal() * OUTCOMES + outcome.ordinal()].sum();
+    }
+
+    OperationStats stats(Op op) {
+        return new OperationStats(count(op, Outcome.SUCCESS), count(op, Outcome.FAILURE),
+                count(op, Outcome.INSUFFICIENT_FUNDS), count(op, Outcome.VELOCITY_LIMIT), latency[op.ordinal()].snapshot());
+    }
+
+    @Override public OperationStats getAddUser() { return stats(Op.ADD_USER); }
+    @Override public OperationStats getFindByUsername() { return stats(Op.FIND_BY_USERNAME); }
+    @Override public OperationStats getTransfer() { return stats(Op.TRANSFER); }
+    @Override public OperationStats getDeposit() { return stats(Op.DEPOSIT); }
+    @Override public OperationStats getWithdraw() { return stats(Op.WITHDRAW); }
+    @Override public OperationStats getAuthenticate() { return stats(Op.AUTHENTICATE); }
+    @Override public OperationStats getSaveToFile() { return stats(Op.SAVE_TO_FILE); }
+    @Override public OperationStats getLoadFromFile() { return stats(Op.LOAD_FROM_FILE); }
+
+    /** Registers with the platform MBean server; does nothing if already registered. */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    // Periodic dump: one table per period, percentiles over that period only
+
+    synchronized void startDump(PrintStream out, long periodMillis) {
+        if (periodMillis <= 0) throw new IllegalArgumentException("period must be positive: " + periodMillis);
+        stopDump();
+        if (dumper == null) {
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "user-metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        LatencyHistogram.Snapshot[] last = new LatencyHistogram.Snapshot[OPS.length];
+        for (Op op : OPS) last[op.ordinal()] = latency[op.ordinal()].snapshot();
+        dump = dumper.scheduleAtFixedRate(() -> dumpOnce(out, last, periodMillis / 1e3),
+                periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stopDump() {
+        if (dump != null) dump.cancel(false);
+        dump = null;
+    }
+
+    private void dumpOnce(PrintStream out, LatencyHistogram.Snapshot[] last, double secs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-16s %10s %10s %9s %9s %9s %9s %10s %8s %8s %8s%n", "user store", "total",
+                "ops/s", "p50 us", "p99 us", "p99.9 us", "max us", "ok", "failed", "no funds", "limited"));
+        for (Op op : OPS) {
+            int i = op.ordinal();
+            LatencyHistogram.Snapshot now = latency[i].snapshot();
+            LatencyHistogram.Snapshot period = now.minus(last[i]);
+            last[i] = now;
+            if (now.count() == 0) continue;
+            sb.append(String.format(Locale.ROOT, "%-16s %10d %10.0f %9.1f %9.1f %9.1f %9.1f %10d %8d %8d %8d%n",
+                    op.name().toLowerCase(Locale.ROOT), now.count(), period.count() / secs,
+                    period.percentileNanos(0.50) / 1e3, period.percentileNanos(0.99) / 1e3,
+                    period.percentileNanos(0.999) / 1e3, now.maxNanos() / 1e3,
+                    count(op, Outcome.SUCCESS), count(op, Outcome.FAILURE), count(op, Outcome.INSUFFICIENT_FUNDS),
+                    count(op, Outcome.VELOCITY_LIMIT)));
+        }
+        out.print(sb);
+        out.flush();
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * JMX view of the User store's operation metrics (see UserMetrics),
+ * registered by User.registerMetricsMBean() as {@value UserMetrics#OBJECT_NAME}.
+ * Each attribute is one operation's counters and latency percentiles since
+ * the process started.
+ */
+public interface UserMetricsMXBean {
+    OperationStats getAddUser();
+    OperationStats getFindByUsername();
+    OperationStats getTransfer();
+    OperationStats getDeposit();
+    OperationStats getWithdraw();
+    OperationStats getAuthenticate();
+    OperationStats getSaveToFile();
+    OperationStats getLoadFromFile();
+
+    /** One operation's totals; shows up in JMX clients as a composite value. */
+    final class OperationStats {
+        private final long successes;
+        private final long failures;
+        private final long insufficientFunds;
+        private final long velocityLimited;
+        private final LatencyHistogram.Snapshot latency;
+
+        OperationStats(long successes, long failures, long insufficientFunds, long velocityLimited,
+                       LatencyHistogram.Snapshot latency) {
+            this.successes = successes;
+            this.failures = failures;
+            this.insufficientFunds = insufficientFunds;
+            this.velocityLimited = velocityLimited;
+            this.latency = latency;
+        }
+
+        public long getCount() { return latency.count(); }
+        public long getSuccesses() { return successes; }
+        /** Calls that returned false or threw, other than for insufficient funds or a velocity limit. */
+        public long getFailures() { return failures; }
+        /** Withdrawals and transfers refused because the balance did not cover them. */
+        public long getInsufficientFunds() { return insufficientFunds; }
+        /** Withdrawals and transfers refused by a velocity rule (see User.setVelocityRules). */
+        public long getVelocityLimited() { return velocityLimited; }
+        public double getP50Micros() { return latency.percentileNanos(0.50) / 1e3; }
+        public double getP90Micros() { return latency.percentileNanos(0.90) / 1e3; }
+        public double getP99Micros() { return latency.percentileNanos(0.99) / 1e3; }
+        public double getP999Micros() { return latency.percentileNanos(0.999) / 1e3; }
+        public double getMaxMicros() { return latency.maxNanos() / 1e3; }
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP front-end for the static User store, so other local processes can
+ * log in and move money against the same accounts as the GUI.
+ *
+ * Each connection is served by its own virtual thread, which reads
+ * requests, applies them to the store in order and writes the responses
+ * back in the same order. Clients may pipeline: send any number of
+ * requests without waiting, and match responses to requests by position
+ * (UserClient does this). Responses are buffered and only flushed once no
+ * further request is already waiting in the connection's input, so a
+ * pipelined burst goes back in a few writes.
+ *
+ * Binary protocol, big-endian, strings as DataOutput.writeUTF:
+ *   request:  byte op, then per op
+ *     ADD_USER      username, password
+ *     AUTHENTICATE  username, password
+ *     DEPOSIT       username, long cents
+ *     WITHDRAW      username, long cents
+ *     TRANSFER      from, to, long cents
+ *     BALANCE       username
+ *     PING          (nothing)
+ *     TRANSFER_ONCE request id, from, to, long cents (see User.transferOnce)
+ *   response: byte status, then
+ *     OK            BALANCE: long cents; others: nothing
+ *     REFUSED       nothing (the store call returned false, or no such user)
+ *     ERROR         message; after an unknown op the server closes the connection
+ *
+ * There is no per-connection login: any client that can connect can act
+ * on any account, so the server binds to the loopback interface unless
+ * given another address.
+ */
+public final class UserServer implements Closeable {
+    static final byte ADD_USER = 1;
+    static final byte AUTHENTICATE = 2;
+    static final byte DEPOSIT = 3;
+    static final byte WITHDRAW = 4;
+    static final byte TRANSFER = 5;
+    static final byte BALANCE = 6;
+    static final byte PING = 7;
+    static final byte TRANSFER_ONCE = 8;
+
+    static final byte OK = 0;
+    static final byte REFUSED = 1;
+    static final byte ERROR = 2;
+
+    public static final int DEFAULT_PORT = 7070;
+    private static final int BACKLOG = 4096;
+    private static final int BUFFER_BYTES = 8 * 1024;
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final ServerSocket listener;
+    private final Thread acceptor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong accepted = new AtomicLong();
+    private volatile boolean closed;
+
+    private UserServer(ServerSocket listener) {
+        this.listener = listener;
+        this.acceptor = Thread.ofPlatform().name("user-server-accept").daemon(true).unstarted(this::acceptLoop);
+    }
+
+    /** Starts serving on port of the loopback interface (0 picks a free port). */
+    public static UserServer start(int port) throws IOException {
+        return start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public static UserServer start(InetSocketAddress address) throws IOException {
+        ServerSocket listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(address, BACKLOG);
+        UserServer server = new UserServer(listener);
+        server.acceptor.start();
+        return server;
+    }
+
+    public int port() {
+        return listener.getLocalPort();
+    }
+
+    public InetSocketAddress address() {
+        return (InetSocketAddress) listener.getLocalSocketAddress();
+    }
+
+    /** Connections currently open. */
+    public int connectionCount() {
+        return connections.size();
+    }
+
+    /** Stops accepting and closes every open connection; requests in progress finish on their own. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        for (Socket s : connections) closeQuietly(s);
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            Socket s;
+            try {
+                s = listener.accept();
+            } catch (IOException e) {
+                if (closed) return;
+                // e.g. out of file descriptors: keep serving the open connections and retry
+                // once some may have closed, rather than spinning on the same error
+                e.printStackTrace();
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            connections.add(s);
+            if (closed) closeQuietly(s); // raced with close() after it walked the set
+            Thread.ofVirtual().name("user-conn-" + accepted.incrementAndGet()).start(() -> serve(s));
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), BUFFER_BYTES));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BUFFER_BYTES));
+            while (true) {
+                int op = in.read();
+                if (op < 0) break;
+                boolean keepOpen;
+                try {
+                    keepOpen = handle((byte) op, in, out);
+                } catch (RuntimeException e) {
+                    // the store failed (e.g. the journal could not be written); the request was fully read
+                    out.writeByte(ERROR);
+                    out.writeUTF(String.valueOf(e));
+                    keepOpen = true;
+                }
+                if (!keepOpen) {
+                    out.flush();
+                    break;
+                }
+                // more pipelined requests already here: answer them before flushing
+                if (in.available() == 0) out.flush();
+            }
+        } catch (EOFException | SocketException e) {
+            // client went away mid-request, or close() shut the socket
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        } finally {
+            connections.remove(s);
+        }
+    }
+
+    /** Reads one request's arguments, applies it and writes the response; false ends the connection. */
+    private static boolean handle(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (op) {
+            case ADD_USER: {
+                String name = in.readUTF();
+                String password = in.readUTF();
+                reply(out, User.addUser(name, password));
+                return true;
+            }
+            case AUTHENTICATE: {
+                String name = in.readUTF();
+                String password = in.readUTF();
+                Optional<User> u = User.findByUsername(name);
+                reply(out, u.isPresent() && u.get().authenticate(password));
+                return true;
+            }
+            case DEPOSIT: {
+                String name = in.readUTF();
+                long cents = in.readLong();
+                Optional<User> u = User.findByUsername(name);
+                reply(out, u.isPresent() && u.get().depositCents(cents));
+                return true;
+            }
+            case WITHDRAW: {
+                String name = in.readUTF();
+                long cents = in.readLong();
+                Optional<User> u = User.findByUsername(name);
+                reply(out, u.isPresent() && u.get().withdrawCents(cents));
+                return true;
+            }
+            case TRANSFER: {
+                String from = in.readUTF();
+                String to = in.readUTF();
+                long cents = in.readLong();
+                reply(out, User.transferCents(from, to, cents));
+                return true;
+            }
+            case BALANCE: {
+                Optional<User> u = User.findByUsername(in.readUTF());
+                if (u.isPresent()) {
+                    out.writeByte(OK);
+                    out.writeLong(u.get().getBalanceCents());
+                } else {
+                    out.writeByte(REFUSED);
+                }
+                return true;
+            }
+            case PING:
+                out.writeByte(OK);
+                return true;
+            case TRANSFER_ONCE: {
+                String id = in.readUTF();
+                String from = in.readUTF();
+                String to = in.readUTF();
+                long cents = in.readLong();
+                reply(out, User.transferOnce(id, from, to, cents));
+                return true;
+            }
+            default:
+                // the rest of the stream cannot be framed any more
+                out.writeByte(ERROR);
+                out.writeUTF("Unknown op " + op);
+                return false;
+        }
+    }
+
+    private static void reply(DataOutputStream out, boolean ok) throws IOException {
+        out.writeByte(ok ? OK : REFUSED);
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Serves the store until the process is killed.
+     *
+     * Options (all --name=value, all optional):
+     *   --port=7070      TCP port on the loopback interface
+     *   --slot=DIR       load this slot directory (see User.saveToDirectory) first
+     *   --journal=DIR    open a write-ahead journal in DIR first, with --fsync=ALWAYS
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--") || !a.contains("=")) throw new IllegalArgumentException("Expected --name=value: " + a);
+            opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+        }
+        String slot = opts.get("slot");
+        if (slot != null) User.loadFromDirectory(new File(slot));
+        String journal = opts.get("journal");
+        if (journal != null) {
+            User.openJournal(new File(journal), UserJournal.FsyncPolicy.valueOf(opts.getOrDefault("fsync", "ALWAYS")), 100);
+        }
+        User.registerMetricsMBean();
+        UserServer server = start(Integer.parseInt(opts.getOrDefault("port", String.valueOf(DEFAULT_PORT))));
+        System.out.println("User store listening on " + server.address() + " (" + User.userCount() + " accounts)");
+        server.acceptor.join();
+    }
+}
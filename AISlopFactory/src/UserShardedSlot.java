@@ -0,0 +1,528 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A save slot split by username hash into shards that are written and read
+ * in parallel, one task per shard on a pool with a thread per core.
+ *
+ * Each shard's accounts are cut into chunks, and each chunk is stored once,
+ * named by its SHA-256, in a chunk store shared by all slot directories
+ * with the same parent (parent/chunks). A save only writes the chunks the
+ * store does not have yet, so saving a mostly unchanged store again, or
+ * into another slot, writes the few chunks holding changed accounts and
+ * reuses the rest. Chunk boundaries fall after accounts whose id hashes to
+ * a boundary (one in 2^CHUNK_AVERAGE_BITS on average) rather than at fixed
+ * offsets, so adding or removing an account only changes its own chunk.
+ *
+ * A slot is a directory holding a manifest:
+ *   int magic "USHM", int version, long generation, int shard count, then
+ *   per shard: int chunk count, then per chunk: int record count, byte[32] SHA-256
+ * and a chunk (chunks/<hex SHA-256>) is:
+ *   int magic "UCHK", int record count, records in the UserSlotFormat layout
+ *
+ * Version 1 slots (shard I of generation G in shard-G-I.dat, in
+ * UserSlotFormat, and just record counts in the manifest) are still read.
+ *
+ * New chunks are written under a temp name, forced to disk and renamed, so
+ * a chunk's name always means its complete contents. A save is published by
+ * atomically replacing the manifest, so a crash, failure or cancel at any
+ * point leaves the previous save loadable. After each save and delete,
+ * chunks that no manifest in the store's parent refers to are deleted.
+ * Saves, loads and deletes are serialized, so that never removes a chunk a
+ * load is reading.
+ */
+final class UserShardedSlot {
+    static final String MANIFEST = "manifest";
+    static final String CHUNKS = "chunks";
+    static final int MAX_SHARDS = 64;
+
+    private static final int MAGIC = 0x5553484D; // "USHM"
+    private static final int VERSION = 2;
+    private static final int CHUNK_MAGIC = 0x5543484B; // "UCHK"
+    private static final int DIGEST_BYTES = 32;
+    private static final int RECORDS_PER_SHARD = 1 << 14;
+    private static final int CHUNK_AVERAGE_BITS = 9; // 512 records, about 40 KB
+    private static final int CHUNK_MAX_RECORDS = 1 << 14;
+    private static final String SHARD_PREFIX = "shard-";
+    private static final String SHARD_SUFFIX = ".dat";
+
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+    // also compresses and decompresses UserCompressedSlot blocks
+    static final ThreadPoolExecutor WORKERS = new ThreadPoolExecutor(
+            WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "slot-shard-io");
+                t.setDaemon(true);
+                return t;
+            });
+    static {
+        WORKERS.allowCoreThreadTimeOut(true);
+    }
+
+    private UserShardedSlot() { }
+
+    /** True if dir holds a published sharded slot. */
+    static boolean isSlot(File dir) {
+        return new File(dir, MANIFEST).isFile();
+    }
+
+    /**
+     * Enough shards for about RECORDS_PER_SHARD accounts each, at most
+     * MAX_SHARDS, rounded up to a power of two so that the count (and with
+     * it which shard, and so which chunk, every account is in) only changes
+     * when the store doubles or halves.
+     */
+    static int shardsFor(long records) {
+        int n = (int) Math.max(1, Math.min(MAX_SHARDS, (records + RECORDS_PER_SHARD - 1) / RECORDS_PER_SHARD));
+        return n == 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    static int shardOf(String key, int shards) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards);
+    }
+
+    /** True if a chunk ends after the account with this id. */
+    private static boolean endsChunk(long id) {
+        return (id * 0x9E3779B97F4A7C15L) >>> (64 - CHUNK_AVERAGE_BITS) == 0;
+    }
+
+    /** One shard's accounts with their balances as of the cut. */
+    static final class Shard {
+        private User[] users;
+        private long[] cents;
+        private int size;
+
+        Shard(int capacity) {
+            users = new User[Math.max(16, capacity)];
+            cents = new long[users.length];
+        }
+
+        void add(User u, long balanceCents) {
+            if (size == users.length) {
+                users = Arrays.copyOf(users, size * 2);
+                cents = Arrays.copyOf(cents, size * 2);
+            }
+            users[size] = u;
+            cents[size++] = balanceCents;
+        }
+    }
+
+    /**
+     * Reads every account out of the cut into shards, in one pass on the
+     * calling thread (the cut's single writer). The cut can be finished as
+     * soon as this returns, before any file is written.
+     */
+    static Shard[] partition(UserSnapshot cut, long expectedRecords) throws IOException {
+        int n = shardsFor(expectedRecords);
+        Shard[] shards = new Shard[n];
+        int capacity = (int) Math.min(1 << 20, expectedRecords / n + expectedRecords / (8L * n) + 16);
+        for (int i = 0; i < n; i++) shards[i] = new Shard(capacity);
+        cut.forEach((u, balanceCents) -> shards[shardOf(u.key(), n)].add(u, balanceCents));
+        return shards;
+    }
+
+    /**
+     * Stores the shards' chunks that the chunk store does not have yet and
+     * publishes them as the next generation of the slot in dir. Progress
+     * counts every record and byte of the save, written or reused.
+     */
+    static synchronized void write(File dir, Shard[] shards, User.SlotProgress progress) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create slot directory " + dir);
+        File store = chunkStore(dir);
+        if (!store.isDirectory() && !store.mkdirs()) throw new IOException("Could not create chunk store " + store);
+        long gen = nextGeneration(dir);
+        Progress p = new Progress(progress);
+        List<Callable<Void>> tasks = new ArrayList<>(shards.length);
+        List<List<ChunkRef>> chunks = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            List<ChunkRef> refs = new ArrayList<>();
+            chunks.add(refs);
+            tasks.add(() -> {
+                writeChunks(store, shard, p.shard(), refs);
+                return null;
+            });
+        }
+        try {
+            runAll(tasks, p);
+            writeManifest(dir, gen, chunks);
+            deleteShardFiles(dir); // of a version 1 save this one replaces
+        } finally {
+            collectChunks(store);
+        }
+    }
+
+    /** Number of accounts in the slot; also a sizing hint for loads. */
+    static synchronized long recordCount(File dir) throws IOException {
+        long n = 0;
+        for (long c : readManifest(dir).counts) n += c;
+        return n;
+    }
+
+    /**
+     * Decodes every shard of the slot in dir in parallel and hands each
+     * shard's accounts to sink on the worker thread that read it, so sink
+     * must be thread-safe.
+     */
+    static synchronized void read(File dir, User.SlotProgress progress, Consumer<List<User>> sink) throws IOException {
+        Manifest m = readManifest(dir);
+        File store = chunkStore(dir);
+        Progress p = new Progress(progress);
+        List<Callable<Void>> tasks = new ArrayList<>(m.counts.length);
+        for (int i = 0; i < m.counts.length; i++) {
+            File f = m.chunks == null ? shardFile(dir, m.generation, i) : null;
+            List<ChunkRef> refs = m.chunks == null ? null : m.chunks.get(i);
+            long expected = m.counts[i];
+            Object where = f != null ? f : "shard " + i + " of " + dir;
+            tasks.add(() -> {
+                ArrayList<User> users = f != null
+                        ? UserSlotFormat.read(f, p.shard())
+                        : readChunks(store, refs, expected, p.shard());
+                if (users.size() != expected) {
+                    throw new IOException(where + " has " + users.size() + " records, manifest says " + expected);
+                }
+                sink.accept(users);
+                return null;
+            });
+        }
+        runAll(tasks, p);
+    }
+
+    /** Deletes the slot's files, then dir itself, then the chunks no other slot uses. */
+    static synchronized void delete(File dir) throws IOException {
+        String[] names = dir.list();
+        if (names == null) return;
+        for (String n : names) {
+            if (n.equals(MANIFEST) || n.equals(MANIFEST + ".tmp") || parseGeneration(n) >= 0) {
+                Files.deleteIfExists(new File(dir, n).toPath());
+            }
+        }
+        Files.deleteIfExists(dir.toPath()); // fails if something else was put in there
+        File store = chunkStore(dir);
+        collectChunks(store);
+        String[] left = store.list();
+        if (left != null && left.length == 0) Files.deleteIfExists(store.toPath());
+    }
+
+    // Chunks
+
+    private static final class ChunkRef {
+        final int records;
+        final byte[] digest;
+
+        ChunkRef(int records, byte[] digest) {
+            this.records = records;
+            this.digest = digest;
+        }
+
+        String name() {
+            return HexFormat.of().formatHex(digest);
+        }
+    }
+
+    static File chunkStore(File dir) {
+        return new File(dir.getAbsoluteFile().getParentFile(), CHUNKS);
+    }
+
+    private static void writeChunks(File store, Shard shard, User.SlotProgress progress, List<ChunkRef> refs)
+            throws IOException {
+        MessageDigest sha = sha256();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(1 << 18);
+        DataOutputStream out = new DataOutputStream(buf);
+        long bytes = 0;
+        int start = 0;
+        for (int i = 0; i < shard.size; i++) {
+            int records = i + 1 - start;
+            if (i < shard.size - 1 && !endsChunk(shard.users[i].id()) && records < CHUNK_MAX_RECORDS) continue;
+            buf.reset();
+            out.writeInt(CHUNK_MAGIC);
+            out.writeInt(records);
+            for (int j = start; j <= i; j++) UserSlotFormat.writeRecord(out, shard.users[j], shard.cents[j]);
+            byte[] chunk = buf.toByteArray();
+            ChunkRef ref = new ChunkRef(records, sha.digest(chunk));
+            storeChunk(store, ref.name(), chunk);
+            refs.add(ref);
+            bytes += chunk.length;
+            start = i + 1;
+            UserSlotFormat.report(progress, start, bytes, store);
+        }
+    }
+
+    // content-addressed: a chunk already stored under this name has these bytes
+    private static void storeChunk(File store, String name, byte[] chunk) throws IOException {
+        File f = new File(store, name);
+        if (f.isFile()) return;
+        File tmp = File.createTempFile(name, ".tmp", store);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(chunk);
+            out.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ArrayList<User> readChunks(File store, List<ChunkRef> refs, long expected, User.SlotProgress progress)
+            throws IOException {
+        MessageDigest sha = sha256();
+        ArrayList<User> users = new ArrayList<>((int) Math.min(expected, Integer.MAX_VALUE));
+        long bytes = 0;
+        for (ChunkRef ref : refs) {
+            File f = new File(store, ref.name());
+            byte[] chunk;
+            try {
+                chunk = Files.readAllBytes(f.toPath());
+            } catch (NoSuchFileException e) {
+                throw new IOException("Missing chunk " + f, e);
+            }
+            if (!MessageDigest.isEqual(sha.digest(chunk), ref.digest)) throw new IOException("Corrupt chunk " + f);
+            ByteBuffer b = ByteBuffer.wrap(chunk);
+            try {
+                if (b.getInt() != CHUNK_MAGIC || b.getInt() != ref.records) throw new IOException("Corrupt chunk header " + f);
+                for (int i = 0; i < ref.records; i++) users.add(UserSlotFormat.readRecord(b, UserSlotFormat.VERSION, f));
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated chunk " + f, e);
+            }
+            bytes += chunk.length;
+            UserSlotFormat.report(progress, users.size(), bytes, f);
+        }
+        return users;
+    }
+
+    /**
+     * Deletes the chunks (and temp files left by failed saves) that no slot
+     * manifest next to the store refers to. Deletes nothing if one of those
+     * manifests cannot be read, as its chunks cannot be told apart.
+     */
+    private static void collectChunks(File store) {
+        File[] slots = store.getParentFile().listFiles(f -> isSlot(f));
+        String[] names = store.list();
+        if (slots == null || names == null) return;
+        Set<String> live = new HashSet<>();
+        for (File slot : slots) {
+            try {
+                Manifest m = readManifest(slot);
+                if (m.chunks != null) for (List<ChunkRef> refs : m.chunks) for (ChunkRef r : refs) live.add(r.name());
+            } catch (IOException e) {
+                return;
+            }
+        }
+        for (String n : names) {
+            if (!live.contains(n)) new File(store, n).delete();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    // Manifest
+
+    private static final class Manifest {
+        final long generation;
+        final long[] counts;
+        final List<List<ChunkRef>> chunks; // null for version 1
+
+        Manifest(long generation, long[] counts, List<List<ChunkRef>> chunks) {
+            this.generation = generation;
+            this.counts = counts;
+            this.chunks = chunks;
+        }
+    }
+
+    private static Manifest readManifest(File dir) throws IOException {
+        File f = new File(dir, MANIFEST);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a sharded save slot: " + dir);
+            int version = in.readInt();
+            if (version != 1 && version != VERSION) throw new IOException("Unsupported manifest version " + version + ": " + f);
+            long gen = in.readLong();
+            int n = in.readInt();
+            if (gen < 1 || n < 1 || n > MAX_SHARDS) throw new IOException("Corrupt manifest: " + f);
+            long[] counts = new long[n];
+            if (version == 1) {
+                for (int i = 0; i < n; i++) counts[i] = in.readLong();
+                return new Manifest(gen, counts, null);
+            }
+            List<List<ChunkRef>> chunks = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int k = in.readInt();
+                if (k < 0) throw new IOException("Corrupt manifest: " + f);
+                List<ChunkRef> refs = new ArrayList<>(Math.min(k, 1 << 12));
+                for (int j = 0; j < k; j++) {
+                    int records = in.readInt();
+                    if (records < 1) throw new IOException("Corrupt manifest: " + f);
+                    byte[] digest = new byte[DIGEST_BYTES];
+                    in.readFully(digest);
+                    refs.add(new ChunkRef(records, digest));
+                    counts[i] += records;
+                }
+                chunks.add(refs);
+            }
+            return new Manifest(gen, counts, chunks);
+        } catch (EOFException e) {
+            throw new IOException("Truncated manifest: " + f, e);
+        }
+    }
+
+    private static void writeManifest(File dir, long gen, List<List<ChunkRef>> chunks) throws IOException {
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(gen);
+            out.writeInt(chunks.size());
+            for (List<ChunkRef> refs : chunks) {
+                out.writeInt(refs.size());
+                for (ChunkRef r : refs) {
+                    out.writeInt(r.records);
+                    out.write(r.digest);
+                }
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static File shardFile(File dir, long gen, int shard) {
+        return new File(dir, String.format("%s%06d-%02d%s", SHARD_PREFIX, gen, shard, SHARD_SUFFIX));
+    }
+
+    /** Generation of a version 1 shard file name, or -1 if the name is not one of ours. */
+    private static long parseGeneration(String name) {
+        if (!name.startsWith(SHARD_PREFIX) || !name.endsWith(SHARD_SUFFIX)) return -1;
+        int dash = name.indexOf('-', SHARD_PREFIX.length());
+        if (dash < 0) return -1;
+        try {
+            return Long.parseLong(name.substring(SHARD_PREFIX.length(), dash));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // past the published generation and any version 1 shard file on disk
+    private static long nextGeneration(File dir) {
+        long max = 0;
+        if (isSlot(dir)) {
+            try {
+                max = readManifest(dir).generation;
+            } catch (IOException e) {
+                // unreadable, and about to be replaced
+            }
+        }
+        String[] names = dir.list();
+        if (names != null) for (String n : names) max = Math.max(max, parseGeneration(n));
+        return max + 1;
+    }
+
+    private static void deleteShardFiles(File dir) {
+        String[] names = dir.list();
+        if (names == null) return;
+        for (String n : names) {
+            if (parseGeneration(n) >= 0) new File(dir, n).delete();
+        }
+    }
+
+    // Parallel execution
+
+    /** Sums the shards' progress into one SlotProgress; a failed shard cancels the others. */
+    static final class Progress {
+        private final User.SlotProgress outer;
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        volatile boolean failed;
+
+        Progress(User.SlotProgress outer) {
+            this.outer = outer;
+        }
+
+        User.SlotProgress shard() {
+            return new User.SlotProgress() {
+                private long lastRecords;
+                private long lastBytes;
+
+                @Override
+                public void update(long r, long b) {
+                    long totalRecords = records.addAndGet(r - lastRecords);
+                    long totalBytes = bytes.addAndGet(b - lastBytes);
+                    lastRecords = r;
+                    lastBytes = b;
+                    outer.update(totalRecords, totalBytes);
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return failed || outer.isCancelled();
+                }
+            };
+        }
+    }
+
+    /**
+     * Runs the tasks on the pool and waits for all of them, even if the
+     * caller is interrupted, so none is still touching files on return.
+     * Rethrows the first real failure in preference to the cancellations it
+     * caused in the other tasks.
+     */
+    static void runAll(List<Callable<Void>> tasks, Progress progress) throws IOException {
+        List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(WORKERS.submit(() -> {
+                try {
+                    return task.call();
+                } catch (Throwable t) {
+                    progress.failed = true;
+                    throw t;
+                }
+            }));
+        }
+        Throwable first = null;
+        boolean interrupted = false;
+        for (Future<Void> f : futures) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    progress.failed = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (first == null || (first instanceof CancellationException && !(cause instanceof CancellationException))) {
+                        first = cause;
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (first == null || first instanceof CancellationException) throw new InterruptedIOException("Interrupted");
+        }
+        if (first instanceof IOException) throw (IOException) first;
+        if (first instanceof RuntimeException) throw (RuntimeException) first;
+        if (first instanceof Error) throw (Error) first;
+        if (first != null) throw new IOException(first);
+    }
+}
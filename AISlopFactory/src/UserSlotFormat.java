@@ -0,0 +1,169 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Versioned binary save-slot format, replacing Java serialization.
+ *
+ * Layout (big-endian):
+ *   header:  int magic "USLT", int version, long record count
+ *   record:  long id, long balanceCents, int KDF iterations, byte[16] salt,
+ *            byte[32] hash, short username length, username bytes (UTF-8)
+ *
+ * Version 1 records have no iterations field; they are all single-pass
+ * SHA-256 (iterations 0, see Credential) and are still read. Version 3 is
+ * the same records in compressed, checksummed blocks (see
+ * UserCompressedSlot); read() recognises it by the version.
+ *
+ * Files are read through a MappedByteBuffer and turned straight into User
+ * objects, no reflection involved. Slots written by the old serialized
+ * format are recognised by isBinary() and go through the legacy reader.
+ *
+ * Both directions report to a User.SlotProgress every PROGRESS_RECORDS
+ * records and stop with a CancellationException when it asks them to.
+ * write() forces the file to disk before returning, so the caller's
+ * rename never publishes a slot whose contents are still in the page cache.
+ */
+final class UserSlotFormat {
+    static final int MAGIC = 0x55534C54; // "USLT"
+    static final int VERSION = 2;
+    static final int SALT_BYTES = Credential.SALT_BYTES;
+    static final int HASH_BYTES = Credential.HASH_BYTES;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8;
+    static final int FIXED_RECORD_BYTES = 8 + 8 + 4 + SALT_BYTES + HASH_BYTES + 2;
+    /** The largest record writeRecord produces: the fixed fields and the longest name. */
+    static final int MAX_RECORD_BYTES = FIXED_RECORD_BYTES + User.MAX_USERNAME_BYTES;
+    static final int PROGRESS_RECORDS = 4096;
+    // usernames are at most MAX_USERNAME_BYTES (a short length); decoded without a per-record buffer
+    private static final ThreadLocal<byte[]> NAME_BUF = ThreadLocal.withInitial(() -> new byte[User.MAX_USERNAME_BYTES]);
+
+    private UserSlotFormat() { }
+
+    /** Accounts to write with their balances, such as a UserSnapshot cut (UserSnapshot::forEach). */
+    interface Records {
+        long forEach(UserSnapshot.Visitor v) throws IOException;
+    }
+
+    /** True if f starts with this format's magic number. */
+    static boolean isBinary(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return f.length() >= HEADER_BYTES && in.readInt() == MAGIC;
+        }
+    }
+
+    /** Writes the accounts with their balances (for a cut, as of the cut). */
+    static void write(File f, Records records, User.SlotProgress progress) throws IOException {
+        long count;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0); // patched below once the count is known
+            long[] written = {0, HEADER_BYTES}; // records, bytes
+            count = records.forEach((u, cents) -> {
+                written[1] += writeRecord(out, u, cents);
+                if (++written[0] % PROGRESS_RECORDS == 0) report(progress, written[0], written[1], f);
+            });
+            report(progress, written[0], written[1], f);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(8);
+            raf.writeLong(count);
+            raf.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Encodes one record in the current version's layout; returns its size
+     * in bytes. Throws IOException for a name the short length cannot hold
+     * rather than truncating it.
+     */
+    static int writeRecord(DataOutput out, User u, long cents) throws IOException {
+        Credential c = u.credential();
+        byte[] salt = c.salt();
+        byte[] hash = c.hash();
+        if (salt.length != SALT_BYTES || hash.length != HASH_BYTES) {
+            throw new IOException("Unexpected credential size for " + u.getUsername());
+        }
+        byte[] name = u.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (name.length > User.MAX_USERNAME_BYTES) {
+            throw new IOException("Username longer than " + User.MAX_USERNAME_BYTES + " bytes: account " + u.id());
+        }
+        out.writeLong(u.id());
+        out.writeLong(cents);
+        out.writeInt(c.iterations);
+        out.write(salt);
+        out.write(hash);
+        out.writeShort(name.length);
+        out.write(name);
+        return FIXED_RECORD_BYTES + name.length;
+    }
+
+    /**
+     * Decodes one record of the given version at b's position. Throws
+     * BufferUnderflowException if b ends mid-record; where names the source
+     * in error messages.
+     */
+    static User readRecord(ByteBuffer b, int version, Object where) throws IOException {
+        long id = b.getLong();
+        long cents = b.getLong();
+        int iterations = version == 1 ? 0 : b.getInt();
+        if (iterations < 0) throw new IOException("Corrupt KDF iterations in " + where);
+        byte[] salt = new byte[SALT_BYTES];
+        b.get(salt);
+        byte[] hash = new byte[HASH_BYTES];
+        b.get(hash);
+        int nameLength = b.getShort() & 0xFFFF;
+        byte[] nameBuf = NAME_BUF.get();
+        b.get(nameBuf, 0, nameLength);
+        String name = new String(nameBuf, 0, nameLength, StandardCharsets.UTF_8);
+        return User.restore(id, name, new Credential(iterations, salt, hash), cents);
+    }
+
+    static void report(User.SlotProgress progress, long records, long bytes, Object where) {
+        progress.update(records, bytes);
+        if (progress.isCancelled()) throw new CancellationException("Cancelled at record " + records + ": " + where);
+    }
+
+    static ArrayList<User> read(File f, User.SlotProgress progress) throws IOException {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Slot too large to map: " + f);
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return read(b, f, progress);
+        }
+    }
+
+    private static ArrayList<User> read(ByteBuffer b, File f, User.SlotProgress progress) throws IOException {
+        if (b.remaining() < HEADER_BYTES || b.getInt() != MAGIC) {
+            throw new IOException("Not a binary save slot: " + f);
+        }
+        int version = b.getInt();
+        if (version != 1 && version != VERSION && version != UserCompressedSlot.VERSION) {
+            throw new IOException("Unsupported slot version " + version + ": " + f);
+        }
+        long count = b.getLong();
+        if (count < 0 || count > Integer.MAX_VALUE) throw new IOException("Corrupt record count in " + f);
+        if (version == UserCompressedSlot.VERSION) return UserCompressedSlot.read(b, count, f, progress);
+        // every record takes at least its fixed fields, so a count the file cannot hold is corrupt
+        int minRecord = version == 1 ? FIXED_RECORD_BYTES - 4 : FIXED_RECORD_BYTES;
+        if (count > b.remaining() / minRecord) throw new IOException("Corrupt record count in " + f);
+
+        ArrayList<User> users = new ArrayList<>((int) count);
+        try {
+            for (long i = 0; i < count; i++) {
+                users.add(readRecord(b, version, f));
+                if ((i + 1) % PROGRESS_RECORDS == 0) report(progress, i + 1, b.position(), f);
+            }
+            report(progress, count, b.position(), f);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated save slot: " + f, e);
+        }
+        return users;
+    }
+}
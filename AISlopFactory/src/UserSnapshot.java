@@ -0,0 +1,43 @@
+import java.io.IOException;
+
+/**
+ * A consistent point-in-time cut of the User store, read while mutations
+ * continue.
+ *
+ * Taking the cut only pauses mutations long enough to bump the snapshot
+ * epoch and take the store's current UserView, which fixes which accounts
+ * are in it: accounts added later are not in that version and accounts
+ * removed later still are. After that every account keeps its balance as
+ * of the cut the first time it is touched (copy-on-write, see
+ * User.preserve). Transfers run entirely inside the MutationGate, so the
+ * cut never falls in the middle of one.
+ */
+final class UserSnapshot {
+    /** Receives each account with its balance as of the cut. */
+    interface Visitor {
+        void visit(User u, long balanceCents) throws IOException;
+    }
+
+    final long epoch;
+    private final UserView members;
+
+    UserSnapshot(long epoch, UserView members) {
+        this.epoch = epoch;
+        this.members = members;
+    }
+
+    /** The accounts in the cut. */
+    UserView members() {
+        return members;
+    }
+
+    /** Visits every account that existed at the cut, in id order. Returns the count. */
+    long forEach(Visitor v) throws IOException {
+        long n = 0;
+        for (User u : members) {
+            v.visit(u, u.balanceAt(this));
+            n++;
+        }
+        return n;
+    }
+}
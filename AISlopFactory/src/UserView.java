@@ -0,0 +1,290 @@
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * One immutable version of the User store's membership: every account that
+ * was live when it was published, in id (creation) order. User.view()
+ * returns the current one with a single volatile read; holding on to it
+ * costs nothing and it never changes, however the store moves on, so a
+ * reader can page through it, count it and look ids up in it without a
+ * lock and without copying anything.
+ *
+ * It is a persistent 32-way radix trie on the account id, each node
+ * counting the accounts under it. Adding or removing an account copies
+ * only the nodes on that id's path (four of them for ids below a million)
+ * and shares the rest with the previous version, so writers publish a new
+ * version per membership change for a few hundred bytes regardless of the
+ * store's size. get(index) and indexOf follow the counts down one path.
+ *
+ * The elements are the live User objects: membership is as of this
+ * version, but getBalanceCents() reads the balance now. Use a slot save
+ * (see UserSnapshot) for balances as of one instant.
+ */
+public final class UserView extends AbstractList<User> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    static final UserView EMPTY = new UserView(new Node(null), 0, 0);
+
+    private final Node root;
+    private final int shift; // level of the root; ids below 1L << (shift + BITS) fit
+    private final long version;
+
+    private UserView(Node root, int shift, long version) {
+        this.root = root;
+        this.shift = shift;
+        this.version = version;
+    }
+
+    /** Trie node; slots hold child nodes, or Users at level 0. */
+    private static final class Node {
+        final Object[] slots;
+        // the Builder that may still change this node in place; any other copies it first
+        final Object owner;
+        int size;
+
+        Node(Object owner) {
+            this.slots = new Object[WIDTH];
+            this.owner = owner;
+        }
+
+        Node(Node from, Object owner) {
+            this.slots = from.slots.clone();
+            this.size = from.size;
+            this.owner = owner;
+        }
+    }
+
+    /** Counts membership changes published to the store; equal versions mean equal membership. */
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public int size() {
+        return root.size;
+    }
+
+    /** The account with this id in this version, or null. */
+    public User find(long id) {
+        if (id < 0 || id >>> shift >>> BITS != 0) return null;
+        Node n = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            n = (Node) n.slots[(int) (id >>> level) & MASK];
+            if (n == null) return null;
+        }
+        return (User) n.slots[(int) id & MASK];
+    }
+
+    @Override
+    public User get(int index) {
+        if (index < 0 || index >= root.size) throw new IndexOutOfBoundsException("Index " + index + ", size " + root.size);
+        Node n = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            for (Object o : n.slots) {
+                Node child = (Node) o;
+                if (child == null) continue;
+                if (index < child.size) {
+                    n = child;
+                    break;
+                }
+                index -= child.size;
+            }
+        }
+        for (Object o : n.slots) {
+            if (o != null && index-- == 0) return (User) o;
+        }
+        throw new AssertionError("node counts out of step");
+    }
+
+    /**
+     * Position of u in this version, or -(insertion point + 1) if it is not
+     * in it (Collections.binarySearch's convention, by id).
+     */
+    public int rank(User u) {
+        long id = u.id();
+        if (id < 0 || id >>> shift >>> BITS != 0) return -(root.size + 1);
+        int before = 0;
+        Node n = root;
+        for (int level = shift; n != null; level -= BITS) {
+            int i = (int) (id >>> level) & MASK;
+            if (level == 0) {
+                for (int j = 0; j < i; j++) if (n.slots[j] != null) before++;
+                return n.slots[i] == u ? before : -(before + 1);
+            }
+            for (int j = 0; j < i; j++) {
+                Node sibling = (Node) n.slots[j];
+                if (sibling != null) before += sibling.size;
+            }
+            n = (Node) n.slots[i];
+        }
+        return -(before + 1);
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof User u)) return -1;
+        int i = rank(u);
+        return i < 0 ? -1 : i;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof User u && find(u.id()) == u;
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+        return new Iterator<>() {
+            // path[d] is the node being scanned at depth d, at[d] the next slot in it
+            private final Node[] path = new Node[shift / BITS + 1];
+            private final int[] at = new int[path.length];
+            private int depth;
+            private User next;
+
+            {
+                path[0] = root;
+                advance();
+            }
+
+            private void advance() {
+                next = null;
+                while (depth >= 0) {
+                    if (at[depth] == WIDTH) {
+                        depth--;
+                        continue;
+                    }
+                    Object o = path[depth].slots[at[depth]++];
+                    if (o == null) continue;
+                    if (depth == path.length - 1) {
+                        next = (User) o;
+                        return;
+                    }
+                    path[++depth] = (Node) o;
+                    at[depth] = 0;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public User next() {
+                User u = next;
+                if (u == null) throw new NoSuchElementException();
+                advance();
+                return u;
+            }
+        };
+    }
+
+    /** This version plus u (replacing whatever had its id); this if u is already in it. */
+    UserView with(User u) {
+        return find(u.id()) == u ? this : edit().add(u).build();
+    }
+
+    /** This version without u; this if u is not in it. */
+    UserView without(User u) {
+        return find(u.id()) != u ? this : edit().remove(u).build();
+    }
+
+    /** Starts a batch of changes on top of this version, e.g. to build a loaded store's view. */
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * Applies a series of adds and removes, copying each shared node at most
+     * once: nodes the builder has already copied are changed in place. Not
+     * thread-safe; build() publishes the result and retires the builder.
+     */
+    static final class Builder {
+        private final UserView base;
+        private Object owner = new Object();
+        private Node root;
+        private int shift;
+        private boolean changed;
+        private int delta; // size change of the add or remove in progress
+
+        private Builder(UserView base) {
+            this.base = base;
+            this.root = base.root;
+            this.shift = base.shift;
+        }
+
+        Builder add(User u) {
+            long id = u.id();
+            if (id <= 0) throw new IllegalArgumentException("Account has no id: " + u.getUsername());
+            checkOpen();
+            while (id >>> shift >>> BITS != 0) {
+                Node grown = new Node(owner);
+                grown.slots[0] = root;
+                grown.size = root.size;
+                root = grown;
+                shift += BITS;
+            }
+            root = put(root, shift, id, u);
+            changed = true;
+            return this;
+        }
+
+        Builder remove(User u) {
+            long id = u.id();
+            checkOpen();
+            if (id < 0 || id >>> shift >>> BITS != 0 || find(id) != u) return this;
+            Node n = take(root, shift, id);
+            root = n != null ? n : new Node(owner);
+            changed = true;
+            return this;
+        }
+
+        UserView build() {
+            checkOpen();
+            owner = null; // nothing may change these nodes any more
+            return changed ? new UserView(root, shift, base.version + 1) : base;
+        }
+
+        private User find(long id) {
+            Node n = root;
+            for (int level = shift; level > 0 && n != null; level -= BITS) n = (Node) n.slots[(int) (id >>> level) & MASK];
+            return n == null ? null : (User) n.slots[(int) id & MASK];
+        }
+
+        private Node put(Node n, int level, long id, User u) {
+            Node m = n.owner == owner ? n : new Node(n, owner);
+            int i = (int) (id >>> level) & MASK;
+            if (level == 0) {
+                delta = m.slots[i] == null ? 1 : 0;
+                m.slots[i] = u;
+            } else {
+                Node child = (Node) m.slots[i];
+                m.slots[i] = put(child != null ? child : new Node(owner), level - BITS, id, u);
+            }
+            m.size += delta;
+            return m;
+        }
+
+        // Caller has checked id is present; returns null for a node left empty.
+        private Node take(Node n, int level, long id) {
+            int i = (int) (id >>> level) & MASK;
+            if (n.size == 1) return null;
+            Node m = n.owner == owner ? n : new Node(n, owner);
+            m.slots[i] = level == 0 ? null : take((Node) m.slots[i], level - BITS, id);
+            m.size--;
+            return m;
+        }
+
+        private void checkOpen() {
+            if (owner == null) throw new IllegalStateException("Builder already built");
+        }
+    }
+}
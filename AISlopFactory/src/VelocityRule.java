@@ -0,0 +1,78 @@
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A limit on how fast money may leave an account: at most maxDebits
+ * withdrawals and outgoing transfers, and at most maxCents of them, within
+ * any window. Installed with User.setVelocityRules; a debit that would
+ * break any rule is refused before it touches the balance.
+ *
+ * The window slides in BUCKETS steps (a tenth of the window), so what it
+ * counts is the debits of the last window to within one bucket. Each
+ * account keeps its own fixed set of buckets per rule (see VelocityWindow),
+ * so checking a rule costs the same however busy the account has been.
+ * Deposits, incoming transfers and posted fees are not counted.
+ */
+public final class VelocityRule {
+    /** Buckets per window, i.e. how finely the window slides. */
+    public static final int BUCKETS = 10;
+
+    private final String name;
+    private final long windowMillis;
+    private final int maxDebits;
+    private final long maxCents;
+    private final LongAdder rejections = new LongAdder();
+
+    /** Integer.MAX_VALUE / Long.MAX_VALUE turn either limit off. */
+    public VelocityRule(String name, Duration window, int maxDebits, long maxCents) {
+        this.name = Objects.requireNonNull(name, "name");
+        this.windowMillis = window.toMillis();
+        if (windowMillis < BUCKETS) throw new IllegalArgumentException("window must be at least " + BUCKETS + " ms: " + window);
+        if (maxDebits < 0 || maxCents < 0) throw new IllegalArgumentException("limits must not be negative");
+        this.maxDebits = maxDebits;
+        this.maxCents = maxCents;
+    }
+
+    /** At most maxDebits withdrawals and outgoing transfers per window. */
+    public static VelocityRule debits(String name, Duration window, int maxDebits) {
+        return new VelocityRule(name, window, maxDebits, Long.MAX_VALUE);
+    }
+
+    /** At most maxCents withdrawn or sent per window. */
+    public static VelocityRule cents(String name, Duration window, long maxCents) {
+        return new VelocityRule(name, window, Integer.MAX_VALUE, maxCents);
+    }
+
+    public String getName() { return name; }
+    public Duration getWindow() { return Duration.ofMillis(windowMillis); }
+    public int getMaxDebits() { return maxDebits; }
+    public long getMaxCents() { return maxCents; }
+
+    /** Debits this rule has refused since it was created. */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name).append(" (");
+        if (maxDebits != Integer.MAX_VALUE) sb.append(maxDebits).append(" debits");
+        if (maxDebits != Integer.MAX_VALUE && maxCents != Long.MAX_VALUE) sb.append(", ");
+        if (maxCents != Long.MAX_VALUE) sb.append(String.format("$%.2f", maxCents / 100.0));
+        return sb.append(" per ").append(getWindow()).append(')').toString();
+    }
+
+    long bucketMillis() {
+        return windowMillis / BUCKETS;
+    }
+
+    /** True if debits more debits, of cents in all, on top of what the window holds stay within the rule. */
+    boolean allows(long windowDebits, long windowCents, int debits, long cents) {
+        return windowDebits + debits <= maxDebits && windowCents <= maxCents - cents;
+    }
+
+    void rejected() {
+        rejections.increment();
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * One account's sliding-window counters for the velocity rules that were
+ * installed when it was created (see VelocityRule).
+ *
+ * Each rule gets a fixed ring of VelocityRule.BUCKETS buckets plus running
+ * totals of the window, all in one long array: moving the window forward
+ * subtracts and clears only the buckets that fell out of it, so a check is
+ * a few array reads per rule, and nothing is allocated after construction.
+ *
+ * Only the thread holding the account's stripe touches it, the same thread
+ * that is about to change the balance, so it needs no lock or atomic of
+ * its own and the check and the debit cannot be interleaved with another
+ * debit of the same account.
+ */
+final class VelocityWindow {
+    // per rule: newest bucket number, debits and cents in the window,
+    // then the debit count and the cents of each bucket
+    private static final int HEAD = 0;
+    private static final int DEBITS = 1;
+    private static final int CENTS = 2;
+    private static final int BUCKET_DEBITS = 3;
+    private static final int BUCKET_CENTS = BUCKET_DEBITS + VelocityRule.BUCKETS;
+    private static final int STRIDE = BUCKET_CENTS + VelocityRule.BUCKETS;
+
+    final VelocityRule[] rules;
+    private final long[] state;
+
+    VelocityWindow(VelocityRule[] rules) {
+        this.rules = rules;
+        this.state = new long[rules.length * STRIDE];
+    }
+
+    /** The first rule that debits more debits totalling cents would break, or null. Records nothing. */
+    VelocityRule check(long nowMillis, int debits, long cents) {
+        for (int r = 0; r < rules.length; r++) {
+            int base = advance(r, nowMillis);
+            if (!rules[r].allows(state[base + DEBITS], state[base + CENTS], debits, cents)) return rules[r];
+        }
+        return null;
+    }
+
+    /**
+     * Counts debits that were applied. A rule with a limit never lets its
+     * totals past it, so they cannot overflow; one without a limit ignores
+     * them.
+     */
+    void record(long nowMillis, int debits, long cents) {
+        for (int r = 0; r < rules.length; r++) {
+            int base = advance(r, nowMillis);
+            int slot = (int) (state[base + HEAD] % VelocityRule.BUCKETS);
+            state[base + BUCKET_DEBITS + slot] += debits;
+            state[base + BUCKET_CENTS + slot] += cents;
+            state[base + DEBITS] += debits;
+            state[base + CENTS] += cents;
+        }
+    }
+
+    // Moves rule r's window up to nowMillis and returns the rule's offset in state.
+    private int advance(int r, long nowMillis) {
+        int base = r * STRIDE;
+        long bucket = nowMillis / rules[r].bucketMillis();
+        long head = state[base + HEAD];
+        if (bucket <= head) return base; // same bucket, or the clock stepped back: count it in the newest
+        long last = head + Math.min(bucket - head, VelocityRule.BUCKETS);
+        for (long b = head + 1; b <= last; b++) {
+            int slot = (int) (b % VelocityRule.BUCKETS);
+            state[base + DEBITS] -= state[base + BUCKET_DEBITS + slot];
+            state[base + CENTS] -= state[base + BUCKET_CENTS + slot];
+            state[base + BUCKET_DEBITS + slot] = 0;
+            state[base + BUCKET_CENTS + slot] = 0;
+        }
+        state[base + HEAD] = bucket;
+        return base;
+    }
+}
@@ -0,0 +1,51 @@
+import java.util.SplittableRandom;
+
+/**
+ * Draws indexes in [0, n) with a Zipfian distribution: index 0 is the most
+ * popular, and popularity falls off as 1 / rank^theta. Uses the rejection-
+ * free method from Gray et al., "Quickly Generating Billion-Record Synthetic
+ * Databases", as popularised by YCSB. Construction is O(n) (it sums the
+ * zeta constant); next() is O(1) and does not allocate.
+ *
+ * Immutable, so one instance can be shared; each thread brings its own
+ * random source.
+ */
+final class ZipfianGenerator {
+    private final long n;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    /** theta must be in (0, 1); 0.99 is the usual "hot keys" setting. */
+    ZipfianGenerator(long n, double theta) {
+        if (n < 2) throw new IllegalArgumentException("n must be at least 2: " + n);
+        if (!(theta > 0 && theta < 1)) throw new IllegalArgumentException("theta must be in (0, 1): " + theta);
+        this.n = n;
+        this.theta = theta;
+        this.zetaN = zeta(n, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        this.halfPowTheta = 1 + Math.pow(0.5, theta);
+    }
+
+    long next(SplittableRandom rnd) {
+        double u = rnd.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) return 0;
+        if (uz < halfPowTheta) return 1;
+        long i = (long) (n * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(i, n - 1);
+    }
+
+    double theta() {
+        return theta;
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+}